@@ -0,0 +1,132 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Maps counter indexes to positions in a {@link CounterCells} storage.
+ *
+ * By default counters are packed next to each other. Counters can also be
+ * put in affinity groups: each group starts on its own cache line, so that
+ * counters updated by unrelated threads do not share a line. A padded layout
+ * puts every counter in its own group.
+ *
+ * A striped counter owns STRIPES cells, one per cache line, and each
+ * updating thread uses the cell selected by its thread id. Reading the
+ * counter sums all its cells.
+ *
+ * A layout only depends on the counter definitions, so it is computed
+ * once and shared by all the storages of a CounterData.
+ */
+final class CellLayout {
+
+	static final int CACHE_LINE_LONGS = 8; // 64 bytes
+	static final int STRIPES = stripeCount();
+
+	private final int[] offsets;
+	private final int[] stripeMasks;
+	private final int size;
+
+	/**
+	 * @param striped counters that are striped
+	 * @param groups affinity group of each counter, null for the default group
+	 * @param padded if true, each counter is in its own group
+	 */
+	CellLayout(boolean[] striped, String[] groups, boolean padded) {
+		offsets = new int[striped.length];
+		stripeMasks = new int[striped.length];
+
+		// default group, packed at the beginning
+		int pos = 0;
+		for (int i = 0; i < striped.length; i++) {
+			if (!striped[i] && !padded && groups[i] == null) {
+				offsets[i] = pos++;
+			}
+		}
+		boolean paddedRegions = false;
+		// affinity groups, in order of first appearance
+		boolean[] done = new boolean[striped.length];
+		for (int i = 0; i < striped.length; i++) {
+			if (striped[i] || done[i] || (!padded && groups[i] == null)) {
+				continue;
+			}
+			pos = startRegion(pos);
+			paddedRegions = true;
+			for (int j = i; j < striped.length; j++) {
+				if (j == i || (!padded && !striped[j] && !done[j] && groups[i].equals(groups[j]))) {
+					offsets[j] = pos++;
+					done[j] = true;
+				}
+			}
+		}
+		// striped counters, using a full line per stripe
+		for (int i = 0; i < striped.length; i++) {
+			if (striped[i]) {
+				pos = startRegion(pos);
+				paddedRegions = true;
+				offsets[i] = pos;
+				stripeMasks[i] = STRIPES - 1;
+				pos += STRIPES * CACHE_LINE_LONGS;
+			}
+		}
+		if (paddedRegions) {
+			// so that the last region does not share its line with whatever follows the array
+			pos = roundUp(pos) + CACHE_LINE_LONGS;
+		}
+		size = pos;
+	}
+
+	private static int startRegion(int pos) {
+		// the first line is shared with the array header and possibly the previous object
+		return Math.max(roundUp(pos), CACHE_LINE_LONGS);
+	}
+
+	/** number of counters */
+	int length() {
+		return offsets.length;
+	}
+
+	/** number of cells needed by the storage */
+	int size() {
+		return size;
+	}
+
+	boolean isStriped(int index) {
+		return stripeMasks[index] != 0;
+	}
+
+	/** cell to update for the counter, for the current thread */
+	int cell(int index) {
+		int mask = stripeMasks[index];
+		if (mask == 0) {
+			return offsets[index];
+		}
+		return offsets[index] + (probe() & mask) * CACHE_LINE_LONGS;
+	}
+
+	/** first cell of the counter */
+	int firstCell(int index) {
+		return offsets[index];
+	}
+
+	/** number of cells of the counter, spaced by CACHE_LINE_LONGS */
+	int cellCount(int index) {
+		return stripeMasks[index] + 1;
+	}
+
+	static int roundUp(int pos) {
+		return (pos + CACHE_LINE_LONGS - 1) / CACHE_LINE_LONGS * CACHE_LINE_LONGS;
+	}
+
+	static int probe() {
+		// Thread ids are allocated sequentially, so threads of a pool
+		// naturally land on different stripes
+		return (int)Thread.currentThread().getId();
+	}
+
+	private static int stripeCount() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int s = 1;
+		while (s < cpus && s < 64) {
+			s <<= 1;
+		}
+		return s;
+	}
+}
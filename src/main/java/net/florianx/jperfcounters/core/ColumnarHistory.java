@@ -0,0 +1,587 @@
+package net.florianx.jperfcounters.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * History of the samples of a SampleCollector, by columns. Each instance
+ * has a row, with an id and a ring of values per column of its
+ * HistoryLayout (values, cumulative values... of each counter), indexed by
+ * slot. Adding a sample stores its values in the rings, reading a series
+ * over a range of slots scans one ring.
+ *
+ * Rows tag each position of their rings with the slot the values belong
+ * to, so that the slots where an instance was not sampled read as missing
+ * without being cleared. Rows of instances that have no slot left in the
+ * history are dropped, and their ids reused.
+ *
+ * Slots are written by one thread, and can be read by others: the ring has
+ * one more position than the history, the slot being written, that readers
+ * do not see until endSlot() publishes it. A reader slower than the slots
+ * can still see the position of a slot it reads be reused by the writer,
+ * so reads check, once they have the values, that head had not reached the
+ * reused position yet, head acting as the sequence of a sequence lock. The
+ * slots overwritten meanwhile are read again from their blocks when
+ * compressed, else they have left the history and read as missing.
+ *
+ * A compressed history only keeps the last CompressedBlock.SLOTS slots in
+ * the ring. Each time the ring holds a whole block of slots, they are
+ * sealed into a CompressedBlock per row, and the timestamps into one more,
+ * which are kept until their slots leave the history. Reads decode the
+ * blocks of the slots that were sealed, and take the others from the ring.
+ *
+ * A history can have a rollup: a coarser history, whose slots each sum up
+ * a number of its slots, and so on. Rows of a rollup are kept
+ * incrementally: endSlot() merges the values of the slot that ends into
+ * the rollup slot being written, which ends with the last slot it covers.
+ */
+final class ColumnarHistory {
+
+	static final class Row {
+		final int id;
+		final String name;
+		final String instance;
+		final SampleMetadata metadata;
+		final HistoryLayout layout;
+		final long[] columns; // column * capacity + position
+		final long[] slotTags; // slot of the values at each position, -1 for none
+		final byte[][][] histograms; // compressed, per histogram counter and position, reused
+		final int[][] histogramLengths;
+		long lastSlot = -1;
+		volatile CompressedBlock[] blocks = CompressedBlock.NONE; // sealed slots, oldest first
+		final Histogram[] rollupHistograms; // merged in the slot being written, null when none yet
+
+		Row(int id, String name, String instance, SampleMetadata metadata, HistoryLayout layout, int capacity) {
+			this.id = id;
+			this.name = name;
+			this.instance = instance;
+			this.metadata = metadata;
+			this.layout = layout;
+			columns = new long[layout.width * capacity];
+			slotTags = new long[capacity];
+			for (int i = 0; i < capacity; i++) {
+				slotTags[i] = -1;
+			}
+			histograms = new byte[layout.histograms][capacity][];
+			histogramLengths = new int[layout.histograms][capacity];
+			rollupHistograms = layout.rollup ? new Histogram[layout.histograms] : null;
+		}
+	}
+
+	private final int historySize;
+	private final int capacity;
+	private final boolean compressed;
+	private final boolean isRollup;
+	private final long[] timestamps; // of the slot at each position
+	private volatile long head; // slot being written, the ones before are readable
+	private long base; // first slot written, see start()
+	private volatile long sealed; // slots before are read from blocks, when compressed
+	private volatile CompressedBlock[] timestampBlocks = CompressedBlock.NONE;
+	private CompressedBlock.BitWriter bitWriter;
+	private volatile ColumnarHistory rollup;
+	private int rollupSlots; // slots of this history per slot of the rollup
+	private long rollupFrom; // first slot merged into the rollup
+	private ByteBuffer histogramBuffer = ByteBuffer.allocate(0);
+	// by name, then instance
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Row>> rows;
+	private final ArrayList<Row> rowsById;
+	private final ArrayList<Integer> freeIds;
+
+	ColumnarHistory(int historySize) {
+		this(historySize, false);
+	}
+	
+	ColumnarHistory(int historySize, boolean compressed) {
+		this(historySize, compressed, false);
+	}
+	
+	private ColumnarHistory(int historySize, boolean compressed, boolean isRollup) {
+		this.historySize = historySize;
+		this.isRollup = isRollup;
+		this.compressed = compressed;
+		if (compressed) {
+			capacity = CompressedBlock.SLOTS + 1;
+			bitWriter = new CompressedBlock.BitWriter();
+		} else {
+			capacity = historySize + 1;
+		}
+		timestamps = new long[capacity];
+		rows = new ConcurrentHashMap<>();
+		rowsById = new ArrayList<>();
+		freeIds = new ArrayList<>();
+	}
+
+	int position(long slot) {
+		return (int)(slot % capacity);
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the rollup of this history, whose slots each sum up the given
+	 * number of slots of this one, slot n of the rollup the slots from
+	 * n * slots. Before the first slot.
+	 */
+	ColumnarHistory setRollup(int slots, int historySize) {
+		ColumnarHistory r = new ColumnarHistory(historySize, compressed, true);
+		r.start(head / slots);
+		rollupSlots = slots;
+		rollupFrom = head;
+		rollup = r;
+		return r;
+	}
+	
+	/**
+	 * Numbers the slots from the given one instead of 0, for example after
+	 * the slots of a previous run. Before the first slot.
+	 */
+	void start(long slot) {
+		head = slot;
+		base = slot;
+		sealed = slot;
+		if (rollup != null) {
+			rollup.start(slot / rollupSlots);
+			rollupFrom = slot;
+		}
+	}
+	
+	/** null if none */
+	ColumnarHistory getRollup() {
+		return rollup;
+	}
+	
+	int getRollupSlots() {
+		return rollupSlots;
+	}
+
+	/** the slot being written */
+	long getHead() {
+		return head;
+	}
+
+	/** oldest slot that can be read */
+	long getFirstSlot() {
+		return Math.max(base, head - historySize);
+	}
+
+	void startSlot(long timestamp) {
+		timestamps[position(head)] = timestamp;
+		if (rollup != null && (head % rollupSlots == 0 || head == rollupFrom)) {
+			rollup.startSlot(timestamp);
+		}
+	}
+
+	/** stores the values of sample in the slot being written, returns its row */
+	Row add(String name, String instance, SampleData sample) {
+		Row row = addRow(name, instance, sample.metadata);
+		int pos = position(head);
+		HistoryLayout l = row.layout;
+		long[] c = row.columns;
+		for (int i = 0; i < l.incremental.length; i++) {
+			int col = l.incremental[i];
+			c[(col + HistoryLayout.INC_VALUE) * capacity + pos] = sample.incrementalCounters[i];
+			c[(col + HistoryLayout.INC_CUMULATIVE) * capacity + pos] = sample.incrementalCountersCumulative[i];
+		}
+		for (int i = 0; i < l.instantaneous.length; i++) {
+			int col = l.instantaneous[i];
+			c[(col + HistoryLayout.INST_VALUE) * capacity + pos] = sample.instantaneousCountersValue[i];
+			c[(col + HistoryLayout.INST_DELTA) * capacity + pos] = sample.instantaneousCountersDelta[i];
+		}
+		for (int i = 0; i < l.measure.length; i++) {
+			int col = l.measure[i];
+			c[(col + HistoryLayout.MEASURE_COUNT) * capacity + pos] = sample.measureCountersCounts[i];
+			c[(col + HistoryLayout.MEASURE_VALUE) * capacity + pos] = sample.measureCountersValues[i];
+			c[(col + HistoryLayout.MEASURE_COUNT_CUMULATIVE) * capacity + pos] = sample.measureCountersCountsCumulative[i];
+			c[(col + HistoryLayout.MEASURE_VALUE_CUMULATIVE) * capacity + pos] = sample.measureCountersValuesCumulative[i];
+			if (row.metadata.measureCounterMinMax[i]) {
+				c[(col + HistoryLayout.MEASURE_MIN) * capacity + pos] = sample.measureCountersMin[i];
+				c[(col + HistoryLayout.MEASURE_MAX) * capacity + pos] = sample.measureCountersMax[i];
+				c[(col + HistoryLayout.MEASURE_LAST) * capacity + pos] = sample.measureCountersLast[i];
+			}
+		}
+		for (int i = 0; i < l.hiRes.length; i++) {
+			long[] states = sample.hiResSlots[i];
+			for (int j = 0; j < states.length; j++) {
+				c[(l.hiRes[i] + j) * capacity + pos] = states[j];
+			}
+		}
+		if (l.hiResTicks >= 0) {
+			c[l.hiResTicks * capacity + pos] = sample.hiResTicks;
+			c[(l.hiResTicks + 1) * capacity + pos] = sample.durationNanos;
+		}
+		for (int i = 0; i < l.histograms; i++) {
+			int length = sample.histogramLengths[i];
+			byte[] h = row.histograms[i][pos];
+			if (length > 0 && (h == null || h.length < length)) {
+				h = new byte[length];
+				row.histograms[i][pos] = h;
+			}
+			if (length > 0) {
+				System.arraycopy(sample.histograms[i], 0, h, 0, length);
+			}
+			row.histogramLengths[i][pos] = length;
+		}
+		return row;
+	}
+	
+	/** row of name and instance in the slot being written, for its values to be set */
+	Row addRow(String name, String instance, SampleMetadata metadata) {
+		Row row = getRow(name, instance, metadata);
+		int pos = position(head);
+		if (row.slotTags[pos] == head) {
+			throw new InternalError("Duplicate instance: " + name + ":" + instance);
+		}
+		row.slotTags[pos] = head;
+		row.lastSlot = head;
+		return row;
+	}
+
+	private Row getRow(String name, String instance, SampleMetadata metadata) {
+		ConcurrentHashMap<String, Row> n = rows.get(name);
+		if (n == null) {
+			n = new ConcurrentHashMap<>();
+			rows.put(name, n);
+		}
+		Row row = n.get(instance);
+		if (row == null || row.metadata != metadata) {
+			// new instance, or one that came back with other counters
+			int id;
+			if (freeIds.isEmpty()) {
+				id = rowsById.size();
+				rowsById.add(null);
+			} else {
+				id = freeIds.remove(freeIds.size() - 1);
+			}
+			if (row != null) {
+				freeIds.add(row.id);
+				rowsById.set(row.id, null);
+			}
+			row = new Row(id, name, instance, metadata,
+					isRollup ? HistoryLayout.rollupOf(metadata) : HistoryLayout.of(metadata), capacity);
+			rowsById.set(id, row);
+			n.put(instance, row);
+		}
+		return row;
+	}
+
+	/**
+	 * Adds the values of the slot at position srcPos of src, a row of a
+	 * finer history, to the slot being written.
+	 */
+	private void merge(Row src, int srcPos, int srcCapacity) {
+		Row row = getRow(src.name, src.instance, src.metadata);
+		int pos = position(head);
+		boolean first = row.slotTags[pos] != head;
+		HistoryLayout sl = src.layout;
+		HistoryLayout l = row.layout;
+		long[] s = src.columns;
+		long[] c = row.columns;
+		for (int i = 0; i < l.incremental.length; i++) {
+			int from = sl.incremental[i] * srcCapacity + srcPos;
+			int to = l.incremental[i] * capacity + pos;
+			long v = s[from + HistoryLayout.INC_VALUE * srcCapacity];
+			c[to + HistoryLayout.INC_VALUE * capacity] = first ? v : c[to + HistoryLayout.INC_VALUE * capacity] + v;
+			c[to + HistoryLayout.INC_CUMULATIVE * capacity] = s[from + HistoryLayout.INC_CUMULATIVE * srcCapacity];
+		}
+		for (int i = 0; i < l.instantaneous.length; i++) {
+			int from = sl.instantaneous[i] * srcCapacity + srcPos;
+			int to = l.instantaneous[i] * capacity + pos;
+			long v = s[from + HistoryLayout.INST_VALUE * srcCapacity];
+			long delta = s[from + HistoryLayout.INST_DELTA * srcCapacity];
+			long min = sl.rollup ? s[from + HistoryLayout.INST_MIN * srcCapacity] : v;
+			long max = sl.rollup ? s[from + HistoryLayout.INST_MAX * srcCapacity] : v;
+			c[to + HistoryLayout.INST_VALUE * capacity] = v; // last
+			if (first) {
+				c[to + HistoryLayout.INST_DELTA * capacity] = delta;
+				c[to + HistoryLayout.INST_MIN * capacity] = min;
+				c[to + HistoryLayout.INST_MAX * capacity] = max;
+			} else {
+				c[to + HistoryLayout.INST_DELTA * capacity] += delta;
+				c[to + HistoryLayout.INST_MIN * capacity] = Math.min(min, c[to + HistoryLayout.INST_MIN * capacity]);
+				c[to + HistoryLayout.INST_MAX * capacity] = Math.max(max, c[to + HistoryLayout.INST_MAX * capacity]);
+			}
+		}
+		for (int i = 0; i < l.measure.length; i++) {
+			int from = sl.measure[i] * srcCapacity + srcPos;
+			int to = l.measure[i] * capacity + pos;
+			long count = s[from + HistoryLayout.MEASURE_COUNT * srcCapacity];
+			long previousCount = first ? 0 : c[to + HistoryLayout.MEASURE_COUNT * capacity];
+			c[to + HistoryLayout.MEASURE_COUNT * capacity] = previousCount + count;
+			c[to + HistoryLayout.MEASURE_VALUE * capacity] = s[from + HistoryLayout.MEASURE_VALUE * srcCapacity]
+					+ (first ? 0 : c[to + HistoryLayout.MEASURE_VALUE * capacity]);
+			c[to + HistoryLayout.MEASURE_COUNT_CUMULATIVE * capacity] =
+					s[from + HistoryLayout.MEASURE_COUNT_CUMULATIVE * srcCapacity];
+			c[to + HistoryLayout.MEASURE_VALUE_CUMULATIVE * capacity] =
+					s[from + HistoryLayout.MEASURE_VALUE_CUMULATIVE * srcCapacity];
+			if (row.metadata.measureCounterMinMax[i] && (count > 0 || first)) {
+				long min = s[from + HistoryLayout.MEASURE_MIN * srcCapacity];
+				long max = s[from + HistoryLayout.MEASURE_MAX * srcCapacity];
+				if (previousCount > 0) { // and count > 0
+					min = Math.min(min, c[to + HistoryLayout.MEASURE_MIN * capacity]);
+					max = Math.max(max, c[to + HistoryLayout.MEASURE_MAX * capacity]);
+				}
+				c[to + HistoryLayout.MEASURE_MIN * capacity] = min;
+				c[to + HistoryLayout.MEASURE_MAX * capacity] = max;
+				c[to + HistoryLayout.MEASURE_LAST * capacity] = s[from + HistoryLayout.MEASURE_LAST * srcCapacity];
+			}
+		}
+		if (l.hiResTicks >= 0) {
+			// states of all hi-res counters, ticks and duration, all summed
+			for (int i = 0; i < l.width - l.hiRes[0]; i++) {
+				long v = s[(sl.hiRes[0] + i) * srcCapacity + srcPos];
+				int to = (l.hiRes[0] + i) * capacity + pos;
+				c[to] = first ? v : c[to] + v;
+			}
+		}
+		for (int i = 0; i < l.histograms; i++) {
+			int length = src.histogramLengths[i][srcPos];
+			if (length > 0) {
+				Histogram h;
+				try {
+					h = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(src.histograms[i][srcPos], 0, length), 0);
+				} catch (DataFormatException e) {
+					throw new InternalError("Bad histogram in history: " + e);
+				}
+				if (row.rollupHistograms[i] == null) {
+					h.setAutoResize(true);
+					row.rollupHistograms[i] = h;
+				} else {
+					row.rollupHistograms[i].add(h);
+				}
+			}
+		}
+		row.slotTags[pos] = head;
+		row.lastSlot = head;
+	}
+	
+	/** stores the histograms merged in the slot being written */
+	private void storeRollupHistograms(Row row) {
+		int pos = position(head);
+		for (int i = 0; i < row.layout.histograms; i++) {
+			Histogram h = row.rollupHistograms[i];
+			if (h == null) {
+				row.histogramLengths[i][pos] = 0;
+				continue;
+			}
+			int needed = h.getNeededByteBufferCapacity();
+			if (histogramBuffer.capacity() < needed) {
+				histogramBuffer = ByteBuffer.allocate(needed);
+			}
+			histogramBuffer.clear();
+			int length = h.encodeIntoCompressedByteBuffer(histogramBuffer);
+			byte[] b = row.histograms[i][pos];
+			if (b == null || b.length < length) {
+				b = new byte[length];
+				row.histograms[i][pos] = b;
+			}
+			histogramBuffer.flip();
+			histogramBuffer.get(b, 0, length);
+			row.histogramLengths[i][pos] = length;
+			row.rollupHistograms[i] = null;
+		}
+	}
+
+	/**
+	 * Publishes the slot being written, and drops the rows that have no
+	 * slot left in the history once it is. Merges the slot into the rollup,
+	 * and ends the slot of the rollup if it was its last one.
+	 */
+	void endSlot() {
+		long next = head + 1;
+		long first = Math.max(0, next - historySize);
+		boolean seal = compressed && next % CompressedBlock.SLOTS == 0;
+		long blockSlot = next - CompressedBlock.SLOTS;
+		ColumnarHistory rollup = this.rollup;
+		int pos = position(head);
+		for (ConcurrentHashMap<String, Row> n: rows.values()) {
+			for (Row row: n.values()) {
+				if (row.lastSlot < first) {
+					n.remove(row.instance);
+					rowsById.set(row.id, null);
+					freeIds.add(row.id);
+					continue;
+				}
+				if (row.lastSlot == head) {
+					if (isRollup) {
+						storeRollupHistograms(row);
+					}
+					if (rollup != null) {
+						rollup.merge(row, pos, capacity);
+					}
+				}
+				if (seal) {
+					row.blocks = seal(row.blocks, row.lastSlot >= blockSlot ? seal(row, blockSlot) : null, first);
+				}
+			}
+		}
+		if (rollup != null && next % rollupSlots == 0) {
+			rollup.endSlot();
+		}
+		if (seal) {
+			timestampBlocks = seal(timestampBlocks,
+					new CompressedBlock(blockSlot, timestamps, 1, capacity, null, bitWriter), first);
+			sealed = next; // the ring is overwritten from now on
+		}
+		head = next;
+		// the positions of the next slot are reused after readers can see head moved
+		Fences.releaseFence();
+	}
+	
+	private CompressedBlock seal(Row row, long firstSlot) {
+		CompressedBlock block = new CompressedBlock(firstSlot, row.columns, row.layout.width, capacity,
+				row.slotTags, bitWriter);
+		if (row.layout.histograms > 0) {
+			block.histograms = new byte[row.layout.histograms][CompressedBlock.SLOTS][];
+			for (int i = 0; i < CompressedBlock.SLOTS; i++) {
+				int pos = position(firstSlot + i);
+				if (row.slotTags[pos] == firstSlot + i) {
+					for (int h = 0; h < row.layout.histograms; h++) {
+						int length = row.histogramLengths[h][pos];
+						if (length > 0) {
+							block.histograms[h][i] = Arrays.copyOf(row.histograms[h][pos], length);
+						}
+					}
+				}
+			}
+		}
+		return block;
+	}
+	
+	/** blocks with block added, if not null, without the blocks older than first */
+	private static CompressedBlock[] seal(CompressedBlock[] blocks, CompressedBlock block, long first) {
+		int drop = 0;
+		while (drop < blocks.length && blocks[drop].firstSlot + CompressedBlock.SLOTS <= first) {
+			drop++;
+		}
+		if (drop == 0 && block == null) {
+			return blocks;
+		}
+		CompressedBlock[] b = Arrays.copyOfRange(blocks, drop, blocks.length + (block == null ? 0 : 1));
+		if (block != null) {
+			b[b.length - 1] = block;
+		}
+		return b;
+	}
+
+	/** collection names that have rows */
+	ArrayList<String> getNames() {
+		return new ArrayList<>(rows.keySet());
+	}
+
+	/** rows of the collection, possibly none */
+	ArrayList<Row> getRows(String name) {
+		ConcurrentHashMap<String, Row> n = rows.get(name);
+		return n == null ? new ArrayList<Row>() : new ArrayList<>(n.values());
+	}
+
+	/**
+	 * Oldest slot whose position the writer had not started reusing when
+	 * the values read before the call were read.
+	 */
+	private long firstIntactSlot() {
+		Fences.acquireFence();
+		return head - capacity + 1;
+	}
+
+	/**
+	 * Tells which of the slots from lastSlot - cnt + 1 to lastSlot row has
+	 * values for, in present[lastSlot - slot]. Returns how many it has.
+	 */
+	int readSlots(Row row, long lastSlot, int cnt, boolean[] present) {
+		long from = lastSlot - cnt + 1;
+		long sealed;
+		long first;
+		do {
+			sealed = this.sealed;
+			for (int i = 0; i < cnt; i++) {
+				long slot = lastSlot - i;
+				present[i] = slot >= sealed && row.slotTags[position(slot)] == slot;
+			}
+			if (from < sealed) {
+				for (CompressedBlock b: row.blocks) {
+					long end = Math.min(b.firstSlot + CompressedBlock.SLOTS - 1, lastSlot);
+					for (long slot = Math.max(b.firstSlot, from); slot <= end; slot++) {
+						present[(int)(lastSlot - slot)] = b.has(slot);
+					}
+				}
+			}
+			first = firstIntactSlot();
+		} while (compressed && Math.max(from, sealed) < first); // sealed by now
+		int found = 0;
+		for (int i = 0; i < cnt; i++) {
+			long slot = lastSlot - i;
+			if (slot >= sealed && slot < first) {
+				present[i] = false; // left the history
+			}
+			if (present[i]) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Reads a column of row for the slots from lastSlot - cnt + 1 to
+	 * lastSlot, into values[lastSlot - slot]. Values of the slots that row
+	 * does not have are left as is, see readSlots(). Slots that left the
+	 * history since readSlots() are cleared in present.
+	 */
+	void read(Row row, int column, long lastSlot, int cnt, long[] values, boolean[] present) {
+		long from = lastSlot - cnt + 1;
+		long sealed;
+		long first;
+		do {
+			sealed = this.sealed;
+			if (from < sealed) {
+				for (CompressedBlock b: row.blocks) {
+					if (b.firstSlot + CompressedBlock.SLOTS > from && b.firstSlot <= lastSlot) {
+						b.read(column, lastSlot, cnt, values);
+					}
+				}
+			}
+			for (long slot = Math.max(from, sealed); slot <= lastSlot; slot++) {
+				int pos = position(slot);
+				if (row.slotTags[pos] == slot) {
+					values[(int)(lastSlot - slot)] = row.columns[column * capacity + pos];
+				}
+			}
+			first = firstIntactSlot();
+		} while (compressed && Math.max(from, sealed) < first);
+		for (long slot = Math.max(from, sealed); slot < first && slot <= lastSlot; slot++) {
+			present[(int)(lastSlot - slot)] = false; // reused, maybe since readSlots()
+		}
+	}
+
+	/**
+	 * Reads the timestamps of the slots from lastSlot - cnt + 1 to lastSlot,
+	 * see read(). Returns how many of the slots, from lastSlot, are still in
+	 * the history once read.
+	 */
+	int readTimestamps(long lastSlot, int cnt, long[] values) {
+		long from = lastSlot - cnt + 1;
+		long sealed;
+		long first;
+		do {
+			sealed = this.sealed;
+			if (from < sealed) {
+				for (CompressedBlock b: timestampBlocks) {
+					if (b.firstSlot + CompressedBlock.SLOTS > from && b.firstSlot <= lastSlot) {
+						b.read(0, lastSlot, cnt, values);
+					}
+				}
+			}
+			for (long slot = Math.max(from, sealed); slot <= lastSlot; slot++) {
+				values[(int)(lastSlot - slot)] = timestamps[position(slot)];
+			}
+			first = firstIntactSlot();
+		} while (compressed && Math.max(from, sealed) < first);
+		return Math.max(from, sealed) >= first ? cnt : (int)Math.max(0, lastSlot - first + 1);
+	}
+}
@@ -0,0 +1,188 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.Arrays;
+
+/**
+ * SLOTS consecutive slots of a row of a compressed ColumnarHistory, sealed
+ * once they are all written. Each column is a bit stream of its values
+ * encoded by delta of delta, as Gorilla does for timestamps: counters that
+ * are constant or grow steadily, like cumulative values, take one bit per
+ * slot, others a few bits more than their variations need. Slots where the
+ * instance was not sampled repeat the previous value, and are marked
+ * missing in present.
+ */
+final class CompressedBlock {
+
+	static final int SLOTS = 128;
+	static final CompressedBlock[] NONE = new CompressedBlock[0];
+
+	final long firstSlot;
+	private final long[] present; // bit per slot
+	private final long[] bits; // columns one after the other
+	private final int[] offsets; // first bit of each column
+	byte[][][] histograms; // per histogram counter and slot, null when none
+
+	/**
+	 * Encodes the slots from firstSlot of a ring of capacity positions per
+	 * column. slotTags tells the slots that are there, null for all of them.
+	 */
+	CompressedBlock(long firstSlot, long[] columns, int width, int capacity, long[] slotTags, BitWriter out) {
+		this.firstSlot = firstSlot;
+		present = new long[SLOTS / 64];
+		int[] positions = new int[SLOTS];
+		for (int i = 0; i < SLOTS; i++) {
+			positions[i] = (int)((firstSlot + i) % capacity);
+			if (slotTags == null || slotTags[positions[i]] == firstSlot + i) {
+				present[i >>> 6] |= 1L << i;
+			}
+		}
+		out.reset();
+		offsets = new int[width];
+		for (int c = 0; c < width; c++) {
+			offsets[c] = out.position();
+			long previous = 0;
+			long delta = 0;
+			for (int i = 0; i < SLOTS; i++) {
+				long v = has(i) ? columns[c * capacity + positions[i]] : previous;
+				long d = v - previous;
+				out.writeDeltaOfDelta(d - delta);
+				previous = v;
+				delta = d;
+			}
+		}
+		bits = out.toArray();
+	}
+
+	private boolean has(int i) {
+		return (present[i >>> 6] & 1L << i) != 0;
+	}
+
+	/** true if the block has values for slot */
+	boolean has(long slot) {
+		return slot >= firstSlot && slot < firstSlot + SLOTS && has((int)(slot - firstSlot));
+	}
+
+	/**
+	 * Decodes a column into values, for the slots from lastSlot - cnt + 1 to
+	 * lastSlot that are in the block: values[lastSlot - slot], left as is for
+	 * the missing ones.
+	 */
+	void read(int column, long lastSlot, int cnt, long[] values) {
+		BitReader in = new BitReader(bits, offsets[column]);
+		long previous = 0;
+		long delta = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			long slot = firstSlot + i;
+			if (slot > lastSlot) {
+				return;
+			}
+			delta += in.readDeltaOfDelta();
+			previous += delta;
+			if (slot > lastSlot - cnt && has(i)) {
+				values[(int)(lastSlot - slot)] = previous;
+			}
+		}
+	}
+
+	/** bits of the columns, growing as needed, reused from one block to the next */
+	static final class BitWriter {
+		private long[] words = new long[64];
+		private int position;
+
+		void reset() {
+			Arrays.fill(words, 0, (position + 63) >>> 6, 0);
+			position = 0;
+		}
+
+		int position() {
+			return position;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(words, (position + 63) >>> 6);
+		}
+
+		/**
+		 * '0' for 0, then '10', '110', '1110' or '1111' followed by 7, 12, 32
+		 * or 64 bits of the zigzag encoded value.
+		 */
+		void writeDeltaOfDelta(long dod) {
+			if (dod == 0) {
+				write(0, 1);
+				return;
+			}
+			long z = (dod << 1) ^ (dod >> 63);
+			if (z >>> 7 == 0) {
+				write(0b10, 2);
+				write(z, 7);
+			} else if (z >>> 12 == 0) {
+				write(0b110, 3);
+				write(z, 12);
+			} else if (z >>> 32 == 0) {
+				write(0b1110, 4);
+				write(z, 32);
+			} else {
+				write(0b1111, 4);
+				write(z, 64);
+			}
+		}
+
+		/** the n low bits of v, n from 1 to 64 */
+		private void write(long v, int n) {
+			int word = position >>> 6;
+			if (word + 1 >= words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+			if (n < 64) {
+				v &= (1L << n) - 1;
+			}
+			int free = 64 - (position & 63);
+			if (n <= free) {
+				words[word] |= v << (free - n);
+			} else {
+				words[word] |= v >>> (n - free);
+				words[word + 1] |= v << (64 - (n - free));
+			}
+			position += n;
+		}
+	}
+
+	static final class BitReader {
+		private final long[] words;
+		private int position;
+
+		BitReader(long[] words, int position) {
+			this.words = words;
+			this.position = position;
+		}
+
+		long readDeltaOfDelta() {
+			int n;
+			if (read(1) == 0) {
+				return 0;
+			} else if (read(1) == 0) {
+				n = 7;
+			} else if (read(1) == 0) {
+				n = 12;
+			} else if (read(1) == 0) {
+				n = 32;
+			} else {
+				n = 64;
+			}
+			long z = read(n);
+			return (z >>> 1) ^ -(z & 1);
+		}
+
+		private long read(int n) {
+			int word = position >>> 6;
+			int bit = position & 63;
+			int free = 64 - bit;
+			long v = (words[word] << bit) >>> (64 - n);
+			if (n > free) {
+				v |= words[word + 1] >>> (64 - (n - free));
+			}
+			position += n;
+			return v;
+		}
+	}
+}
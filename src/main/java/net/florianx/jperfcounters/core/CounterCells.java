@@ -0,0 +1,108 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Storage for the values of one kind of counters, laid out according to a
+ * {@link CellLayout}. Indexes given to the methods are counter indexes.
+ */
+final class CounterCells {
+
+	private final CellLayout layout;
+	private final LongCells cells;
+	// only one thread ever updates the cells: use ordered stores instead of atomic operations
+	private final boolean singleWriter;
+
+	CounterCells(CellLayout layout) {
+		this(layout, false);
+	}
+
+	CounterCells(CellLayout layout, boolean singleWriter) {
+		this.layout = layout;
+		this.singleWriter = singleWriter;
+		cells = new LongCells(layout.size());
+	}
+
+	/** number of counters */
+	int length() {
+		return layout.length();
+	}
+
+	void increment(int index) {
+		add(index, 1);
+	}
+
+	void decrement(int index) {
+		add(index, -1);
+	}
+
+	void add(int index, long delta) {
+		int pos = layout.cell(index);
+		if (singleWriter) {
+			// release store, readers see the value with get()
+			cells.addOrdered(pos, delta);
+		} else {
+			cells.add(pos, delta);
+		}
+	}
+
+	/** only for counters that are not striped */
+	void set(int index, long value) {
+		if (singleWriter) {
+			cells.setOrdered(layout.firstCell(index), value);
+		} else {
+			cells.set(layout.firstCell(index), value);
+		}
+	}
+
+	/** only for counters that are not striped, not for single writer cells */
+	long getAndSet(int index, long value) {
+		return cells.getAndSet(layout.firstCell(index), value);
+	}
+
+	/**
+	 * lowers the first cell of the counter to value, if it is greater. Always
+	 * atomic, also for single writer cells, since the sampler resets them.
+	 */
+	void min(int index, long value) {
+		int pos = layout.firstCell(index);
+		long current;
+		do {
+			current = cells.get(pos);
+			if (value >= current) {
+				return;
+			}
+		} while (!cells.compareAndSet(pos, current, value));
+	}
+
+	/** raises the first cell of the counter to value, if it is lower, see min() */
+	void max(int index, long value) {
+		int pos = layout.firstCell(index);
+		long current;
+		do {
+			current = cells.get(pos);
+			if (value <= current) {
+				return;
+			}
+		} while (!cells.compareAndSet(pos, current, value));
+	}
+
+	/** value of the counter, summed over its cells when striped */
+	long get(int index) {
+		int pos = layout.firstCell(index);
+		int cnt = layout.cellCount(index);
+		long sum = 0;
+		for (int i = 0; i < cnt; i++) {
+			sum += cells.get(pos);
+			pos += CellLayout.CACHE_LINE_LONGS;
+		}
+		return sum;
+	}
+
+	void reset() {
+		cells.clear();
+	}
+
+	/** sets all cells to value, to start min() or max() from */
+	void reset(long value) {
+		cells.fill(value);
+	}
+}
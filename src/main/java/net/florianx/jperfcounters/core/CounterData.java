@@ -1,15 +1,25 @@
 package net.florianx.jperfcounters.core;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import org.HdrHistogram.AtomicHistogram;
 import org.HdrHistogram.Histogram;
 import org.HdrHistogram.WriterReaderPhaser;
 
 
 public class CounterData implements PerfSampleable {
+	
+	// EXACT hi-res counters keep the state and the time it was entered in one
+	// long: nanos since hiResEpoch << STATE_BITS | ordinal
+	static final int STATE_BITS = 8;
+	static final int MAX_EXACT_STATES = 1 << STATE_BITS;
+	// the nanos wrap every 2^55 ns (about 417 days) and keep the long
+	// positive, away from ThreadStates.FREE. Each sample refreshes them, so
+	// elapsed times taken modulo 2^55 are exact
+	static final long EXACT_TIME_MASK = (1L << (63 - STATE_BITS)) - 1;
+	
 	private String name;
 	private String instance;
 	
@@ -20,27 +30,102 @@ public class CounterData implements PerfSampleable {
 	HiResCounter<?>[] hiResCounters;
 	
 	private SampleMetadata metadata;
+	private boolean singleWriter;
+	
+	// Layout of the cells of each kind of counters, shared by both Data
+	private CellLayout incrementalLayout;
+	private CellLayout instantaneousLayout;
+	private CellLayout measureLayout;
+	private CellLayout minMaxLayout; // never striped, null without MIN_MAX measure counters
 	
 	class Data {
-		AtomicLongArray incrementalCountersValues;
-		AtomicLongArray instantaneousCountersValues;
-		AtomicLongArray measureCountersCounts;
-		AtomicLongArray measureCountersValues;
-		Histogram[] histograms;
+		CounterCells incrementalCountersValues;
+		CounterCells instantaneousCountersValues;
+		CounterCells measureCountersCounts;
+		CounterCells measureCountersValues;
+		MinMaxCells measureCountersMinMax; // null without MIN_MAX measure counters
+		AtomicReferenceArray<Histogram> histograms; // null for packed histograms until a value is recorded
+		Histogram[][] histogramStripes; // for striped histograms, merged into histograms when sampling
 		long[][] hiResSlots;
+		AtomicLongArray[] hiResNanos; // for EXACT hi-res counters, nanos per state
+		int hiResTicks; // hi-res ticks that sampled this Data, written by the hi-res thread only
+		long durationNanos; // time covered by the sample, set when taking it
 		
 		Data() {
-			incrementalCountersValues = new AtomicLongArray(incrementalCounters.length);
-			instantaneousCountersValues = new AtomicLongArray(instantaneousCounters.length);
-			measureCountersCounts = new AtomicLongArray(measureCounters.length);
-			measureCountersValues = new AtomicLongArray(measureCounters.length);
-			histograms = new AtomicHistogram[histogramCounters.length];
+			incrementalCountersValues = new CounterCells(incrementalLayout);
+			instantaneousCountersValues = new CounterCells(instantaneousLayout);
+			measureCountersCounts = new CounterCells(measureLayout);
+			measureCountersValues = new CounterCells(measureLayout);
+			if (minMaxLayout != null) {
+				measureCountersMinMax = new MinMaxCells(minMaxLayout);
+			}
+			histograms = new AtomicReferenceArray<>(histogramCounters.length);
+			histogramStripes = new Histogram[histogramCounters.length][];
 			for (int i = 0; i < histogramCounters.length; i++) {
-				histograms[i] = histogramCounters[i].createHistogram();
+				if (!histogramCounters[i].packed) {
+					histograms.set(i, histogramCounters[i].createHistogram(singleWriter));
+				}
+				if (histogramCounters[i].striped) {
+					histogramStripes[i] = new Histogram[CellLayout.STRIPES];
+					for (int j = 0; j < CellLayout.STRIPES; j++) {
+						histogramStripes[i][j] = histogramCounters[i].createHistogram(singleWriter);
+					}
+				}
 			}
 			hiResSlots = new long[hiResCounters.length][];
+			hiResNanos = new AtomicLongArray[hiResCounters.length];
 			for (int i = 0; i < hiResCounters.length; i++) {
 				hiResSlots[i] = new long[hiResCounters[i].getStateCount()];
+				if (hiResCounters[i].exact) {
+					hiResNanos[i] = new AtomicLongArray(hiResCounters[i].getStateCount());
+				}
+			}
+		}
+		
+		/** histogram to record values of c in, for the current thread */
+		Histogram histogram(HistogramCounter c) {
+			Histogram[] stripes = histogramStripes[c.index];
+			if (stripes != null) {
+				return stripes[CellLayout.probe() & (CellLayout.STRIPES - 1)];
+			}
+			Histogram h = histograms.get(c.index);
+			if (h == null) {
+				// packed, allocated on first record; another writer may be allocating it too
+				h = c.createHistogram(singleWriter);
+				if (!histograms.compareAndSet(c.index, null, h)) {
+					h = histograms.get(c.index);
+				}
+			}
+			return h;
+		}
+		
+		/** resets histograms, releasing packed ones that did not record anything in the sampled slot */
+		void resetHistograms() {
+			for (int i = 0; i < histogramCounters.length; i++) {
+				Histogram h = histograms.get(i);
+				if (h != null) {
+					if (histogramCounters[i].packed && h.getTotalCount() == 0) {
+						histograms.set(i, null);
+					} else {
+						h.reset();
+					}
+				}
+				if (histogramStripes[i] != null) {
+					for (Histogram stripe: histogramStripes[i]) {
+						stripe.reset();
+					}
+				}
+			}
+		}
+		
+		/** merges striped histograms, so that histograms has all values */
+		void mergeHistogramStripes() {
+			for (int i = 0; i < histogramCounters.length; i++) {
+				if (histogramStripes[i] != null) {
+					for (Histogram h: histogramStripes[i]) {
+						histograms.get(i).add(h);
+					}
+				}
 			}
 		}
 	}
@@ -49,11 +134,23 @@ public class CounterData implements PerfSampleable {
 	private volatile Data current;
 	private Data other;
 	private SampleData lastSample;
+	// Incremented to ask BufferedSetters to publish what they accumulated
+	private volatile long flushEpoch;
 	
 	// Instantaneous counters: keep current value in instantaneousCurrentValues,
 	// maintain increments/decrements in Data
-	private AtomicLongArray instantaneousCurrentValues;
+	private CounterCells instantaneousCurrentValues;
+	// Relaxed counters: keep cumulative values outside of Data, sample() takes
+	// what was added since lastSample. null when no counter of the kind is relaxed
+	private CounterCells relaxedIncrementalValues;
+	private CounterCells relaxedMeasureCounts;
+	private CounterCells relaxedMeasureValues;
 	private AtomicIntegerArray hiResState;
+	private AtomicLongArray hiResExactState;
+	private ThreadStates[] hiResThreadStates; // for PER_THREAD counters, null for the others
+	private long hiResEpoch;
+	private long lastSampleNanos; // only the sampler thread uses it
+	private boolean hasSampledHiResCounters; // some hi-res counters are not EXACT
 		
 	public CounterData(String name, String instance) {
 		this.name = name;
@@ -72,50 +169,44 @@ public class CounterData implements PerfSampleable {
 		return metadata;
 	}
 	
-	void init(
-			ArrayList<IncrementalCounter> incrementalCounters,
-			ArrayList<InstantaneousCounter> instantaneousCounters,
-			ArrayList<MeasureCounter> measureCounters,
-			ArrayList<HistogramCounter> histogramCounters,
-			ArrayList<HiResCounter<? extends Enum<?>>> hiResCounters) {
-		
-		this.incrementalCounters = incrementalCounters.toArray(new IncrementalCounter[incrementalCounters.size()]);
-		this.instantaneousCounters
-				= instantaneousCounters.toArray(new InstantaneousCounter[instantaneousCounters.size()]);
-		this.measureCounters = measureCounters.toArray(new MeasureCounter[measureCounters.size()]);
-		this.histogramCounters = histogramCounters.toArray(new HistogramCounter[histogramCounters.size()]);
-		this.hiResCounters = hiResCounters.toArray(new HiResCounter<?>[hiResCounters.size()]);
+	void init(CounterTemplate t) {
+		incrementalCounters = t.incrementalCounters;
+		instantaneousCounters = t.instantaneousCounters;
+		measureCounters = t.measureCounters;
+		histogramCounters = t.histogramCounters;
+		hiResCounters = t.hiResCounters;
+		metadata = t.metadata;
+		singleWriter = t.singleWriter;
+		incrementalLayout = t.incrementalLayout;
+		instantaneousLayout = t.instantaneousLayout;
+		measureLayout = t.measureLayout;
+		minMaxLayout = t.minMaxLayout;
 		
-		SampleMetadata md = new SampleMetadata();
-		md.incrementalCounterNames = new String[this.incrementalCounters.length];
-		for (int i = 0; i < this.incrementalCounters.length; i++) {
-			md.incrementalCounterNames[i] = this.incrementalCounters[i].name;
-		}
-		md.instantaneousCounterNames = new String[this.instantaneousCounters.length];
-		for (int i = 0; i < this.instantaneousCounters.length; i++) {
-			md.instantaneousCounterNames[i] = this.instantaneousCounters[i].name;
-		}
-		md.measureCounterNames = new String[this.measureCounters.length];
-		for (int i = 0; i < this.measureCounters.length; i++) {
-			md.measureCounterNames[i] = this.measureCounters[i].name;
+		instantaneousCurrentValues = new CounterCells(instantaneousLayout, singleWriter);
+		for (IncrementalCounter c: this.incrementalCounters) {
+			if (c.relaxed) {
+				relaxedIncrementalValues = new CounterCells(incrementalLayout, singleWriter);
+				break;
+			}
 		}
-		md.histogramCounterNames = new String[this.histogramCounters.length];
-		for (int i = 0; i < this.histogramCounters.length; i++) {
-			md.histogramCounterNames[i] = this.histogramCounters[i].name;
+		for (MeasureCounter c: this.measureCounters) {
+			if (c.relaxed) {
+				relaxedMeasureCounts = new CounterCells(measureLayout, singleWriter);
+				relaxedMeasureValues = new CounterCells(measureLayout, singleWriter);
+				break;
+			}
 		}
-		md.hiResCounterNames = new String[this.hiResCounters.length];
-		md.hiResCounterStates = new String[this.hiResCounters.length][];
-		for (int i = 0; i < this.hiResCounters.length; i++) {
-			md.hiResCounterNames[i] = this.hiResCounters[i].name;
-			md.hiResCounterStates[i] = new String[this.hiResCounters[i].values.length];
-			for (int j = 0; j < md.hiResCounterStates[i].length; j++) {
-				md.hiResCounterStates[i][j] = this.hiResCounters[i].values[j].toString();
+		hiResState = new AtomicIntegerArray(hiResCounters.length);
+		hiResExactState = new AtomicLongArray(hiResCounters.length); // all in state 0 since hiResEpoch
+		hiResEpoch = System.nanoTime();
+		lastSampleNanos = hiResEpoch;
+		hiResThreadStates = new ThreadStates[hiResCounters.length];
+		for (HiResCounter<?> c: hiResCounters) {
+			hasSampledHiResCounters |= !c.exact;
+			if (c.perThread) {
+				hiResThreadStates[c.index] = new ThreadStates();
 			}
 		}
-		metadata = md;
-		
-		instantaneousCurrentValues = new AtomicLongArray(instantaneousCounters.size());
-		hiResState = new AtomicIntegerArray(hiResCounters.size());
 
 		wrp = new WriterReaderPhaser();
 		
@@ -124,82 +215,216 @@ public class CounterData implements PerfSampleable {
 		lastSample = new SampleData(this, other, null); // start from zero
 	}
 	
-	long startUpdate() {
-		return wrp.writerCriticalSectionEnter();
-	}
-	
-	void endUpdate(long w) {
-		wrp.writerCriticalSectionExit(w);
-	}
-	
 	// Incremental counter
-	void inc(IncrementalCounter c) {
+	public void inc(IncrementalCounter c) {
+		if (c.relaxed) {
+			relaxedIncrementalValues.increment(c.index);
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
-		current.incrementalCountersValues.incrementAndGet(c.index);
+		current.incrementalCountersValues.increment(c.index);
 		wrp.writerCriticalSectionExit(w);
 	}
-	void add(IncrementalCounter c, long value) {
+	public void add(IncrementalCounter c, long value) {
+		if (c.relaxed) {
+			relaxedIncrementalValues.add(c.index, value);
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
-		current.incrementalCountersValues.addAndGet(c.index, value);
+		current.incrementalCountersValues.add(c.index, value);
 		wrp.writerCriticalSectionExit(w);
 	}
 	// Instantaneous counter
-	void set(InstantaneousCounter c, long value) {
+	public void set(InstantaneousCounter c, long value) {
+		if (c.relaxed) {
+			instantaneousCurrentValues.set(c.index, value);
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
 		long oldValue = instantaneousCurrentValues.getAndSet(c.index, value);
 		Data d = current;
-		d.instantaneousCountersValues.addAndGet(c.index, -oldValue + value);
+		d.instantaneousCountersValues.add(c.index, -oldValue + value);
 		wrp.writerCriticalSectionExit(w);
 	}
-	void inc(InstantaneousCounter c) {
+	public void inc(InstantaneousCounter c) {
+		if (c.relaxed) {
+			instantaneousCurrentValues.increment(c.index);
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
-		instantaneousCurrentValues.incrementAndGet(c.index);
-		current.instantaneousCountersValues.incrementAndGet(c.index);
+		instantaneousCurrentValues.increment(c.index);
+		current.instantaneousCountersValues.increment(c.index);
 		wrp.writerCriticalSectionExit(w);
 	}
 	public void add(InstantaneousCounter c, long value) {
+		if (c.relaxed) {
+			instantaneousCurrentValues.add(c.index, value);
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
-		instantaneousCurrentValues.addAndGet(c.index, value);
-		current.instantaneousCountersValues.addAndGet(c.index, value);
+		instantaneousCurrentValues.add(c.index, value);
+		current.instantaneousCountersValues.add(c.index, value);
 		wrp.writerCriticalSectionExit(w);
 	}
 	public void dec(InstantaneousCounter c) {
+		if (c.relaxed) {
+			instantaneousCurrentValues.decrement(c.index);
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
-		instantaneousCurrentValues.decrementAndGet(c.index);
-		current.instantaneousCountersValues.decrementAndGet(c.index);
+		instantaneousCurrentValues.decrement(c.index);
+		current.instantaneousCountersValues.decrement(c.index);
 		wrp.writerCriticalSectionExit(w);
 	}
 	// Measure counter
 	public void recordValue(MeasureCounter c, long value) {
+		if (c.relaxed) {
+			relaxedMeasureCounts.increment(c.index);
+			relaxedMeasureValues.add(c.index, value);
+			if (c.minMax) {
+				recordRelaxedMinMax(c.index, value);
+			}
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
 		Data d = current;
-		d.measureCountersCounts.incrementAndGet(c.index);
-		d.measureCountersValues.addAndGet(c.index, value);
+		d.measureCountersCounts.increment(c.index);
+		d.measureCountersValues.add(c.index, value);
+		if (c.minMax) {
+			d.measureCountersMinMax.record(c.index, value);
+		}
 		wrp.writerCriticalSectionExit(w);
 	}
 	public void recordValueWithCount(MeasureCounter c, long value, long count) {
+		if (c.relaxed) {
+			relaxedMeasureCounts.add(c.index, count);
+			relaxedMeasureValues.add(c.index, value);
+			if (c.minMax && count > 0) {
+				recordRelaxedMinMax(c.index, value / count);
+			}
+			return;
+		}
 		long w = wrp.writerCriticalSectionEnter();
 		Data d = current;
-		d.measureCountersCounts.addAndGet(c.index, count);
-		d.measureCountersValues.addAndGet(c.index, value);
+		d.measureCountersCounts.add(c.index, count);
+		d.measureCountersValues.add(c.index, value);
+		if (c.minMax && count > 0) {
+			d.measureCountersMinMax.record(c.index, value / count);
+		}
+		wrp.writerCriticalSectionExit(w);
+	}
+	/**
+	 * The extremes of relaxed counters go through the phaser all the same:
+	 * min and max then move to the sample together, and cannot be split
+	 * between two slots.
+	 */
+	private void recordRelaxedMinMax(int index, long value) {
+		long w = wrp.writerCriticalSectionEnter();
+		current.measureCountersMinMax.record(index, value);
 		wrp.writerCriticalSectionExit(w);
 	}
 	// Histogram
 	public void recordValue(HistogramCounter c, long value) {
 		long w = wrp.writerCriticalSectionEnter();
-		current.histograms[c.index].recordValue(value);
+		current.histogram(c).recordValue(value);
 		wrp.writerCriticalSectionExit(w);
 	}
 	public void recordValueWithCount(HistogramCounter c, long value, long count) {
 		long w = wrp.writerCriticalSectionEnter();
-		current.histograms[c.index].recordValueWithCount(value, count);
+		current.histogram(c).recordValueWithCount(value, count);
 		wrp.writerCriticalSectionExit(w);
 	}
 	// Hi res counter
 	public <E extends Enum<?>> void setState(HiResCounter<E> c, E state) {
+		if (c.perThread) {
+			throw new IllegalStateException("PER_THREAD counter " + c.name + ": set states through register()");
+		}
+		if (c.exact) {
+			setExactState(c.index, state.ordinal());
+			return;
+		}
 		// does not involve Data, so does not need wrp critical section
 		hiResState.set(c.index, state.ordinal());
 	}
+	private void setExactState(int index, int ordinal) {
+		long w = wrp.writerCriticalSectionEnter();
+		moveExactState(current, index, hiResExactState, index, ordinal);
+		wrp.writerCriticalSectionExit(w);
+	}
+	
+	// ordinals for moveExactState that are not states
+	private static final int KEEP_STATE = -1;
+	private static final int RELEASE = -2;
+	
+	/**
+	 * Moves the EXACT state at position pos of states to ordinal, adding the
+	 * time spent in the previous state to counter index in data. KEEP_STATE
+	 * only accounts the time, RELEASE also frees a per-thread slot. Does
+	 * nothing on a free slot.
+	 */
+	private void moveExactState(Data data, int index, AtomicLongArray states, int pos, int ordinal) {
+		long previous;
+		long now;
+		long next;
+		do {
+			previous = states.get(pos);
+			if (previous == ThreadStates.FREE) {
+				return;
+			}
+			now = exactNow();
+			if (ordinal == RELEASE) {
+				next = ThreadStates.FREE;
+			} else {
+				next = now << STATE_BITS | (ordinal == KEEP_STATE ? previous & (MAX_EXACT_STATES - 1) : ordinal);
+			}
+		} while (!states.compareAndSet(pos, previous, next));
+		long elapsed = (now - (previous >>> STATE_BITS)) & EXACT_TIME_MASK;
+		if (elapsed > 0 && elapsed <= EXACT_TIME_MASK >>> 1) { // else the clock went back
+			data.hiResNanos[index].addAndGet((int)(previous & (MAX_EXACT_STATES - 1)), elapsed);
+		}
+	}
+	
+	private long exactNow() {
+		return (System.nanoTime() - hiResEpoch) & EXACT_TIME_MASK;
+	}
+	
+	// PER_THREAD hi-res counters
+	public <E extends Enum<?>> HiResThreadState<E> register(HiResCounter<E> c, E initialState) {
+		if (!c.perThread) {
+			throw new IllegalStateException("Counter " + c.name + " is not PER_THREAD");
+		}
+		ThreadStates states = hiResThreadStates[c.index];
+		long initial = c.exact
+				? exactNow() << STATE_BITS | initialState.ordinal()
+				: initialState.ordinal();
+		int slot = states.acquire(initial);
+		return new HiResThreadState<E>(this, c, slot, states.chunk(slot));
+	}
+	void setThreadState(HiResCounter<?> c, AtomicLongArray chunk, int pos, int ordinal) {
+		if (c.exact) {
+			long w = wrp.writerCriticalSectionEnter();
+			moveExactState(current, c.index, chunk, pos, ordinal);
+			wrp.writerCriticalSectionExit(w);
+		} else {
+			// read by hi-res ticks only, like hiResState
+			chunk.lazySet(pos, ordinal);
+		}
+	}
+	void releaseThreadState(HiResCounter<?> c, int slot, AtomicLongArray chunk, int pos) {
+		if (c.exact) {
+			long w = wrp.writerCriticalSectionEnter();
+			moveExactState(current, c.index, chunk, pos, RELEASE);
+			wrp.writerCriticalSectionExit(w);
+		} else {
+			chunk.set(pos, ThreadStates.FREE);
+		}
+		hiResThreadStates[c.index].release(slot);
+	}
+	
+	/** true if hi-res ticks have something to sample */
+	boolean hasSampledHiResCounters() {
+		return hasSampledHiResCounters;
+	}
 	
 	public static class Setter {
 		private CounterData counterData;
@@ -221,60 +446,325 @@ public class CounterData implements PerfSampleable {
 		
 		// Incremental counter
 		public void inc(IncrementalCounter c) {
-			setterCurrent.incrementalCountersValues.incrementAndGet(c.index);
+			if (c.relaxed) {
+				counterData.inc(c);
+				return;
+			}
+			setterCurrent.incrementalCountersValues.increment(c.index);
 		}
 		public void add(IncrementalCounter c, long value) {
-			setterCurrent.incrementalCountersValues.addAndGet(c.index, value);
+			if (c.relaxed) {
+				counterData.add(c, value);
+				return;
+			}
+			setterCurrent.incrementalCountersValues.add(c.index, value);
 		}
 		// Instantaneous counter
 		public void set(InstantaneousCounter c, long value) {
+			if (c.relaxed) {
+				counterData.set(c, value);
+				return;
+			}
 			long oldValue = counterData.instantaneousCurrentValues.getAndSet(c.index, value);
-			setterCurrent.instantaneousCountersValues.addAndGet(c.index, -oldValue + value);
+			setterCurrent.instantaneousCountersValues.add(c.index, -oldValue + value);
 		}
 		public void inc(InstantaneousCounter c) {
-			counterData.instantaneousCurrentValues.incrementAndGet(c.index);
-			setterCurrent.instantaneousCountersValues.incrementAndGet(c.index);
+			if (c.relaxed) {
+				counterData.inc(c);
+				return;
+			}
+			counterData.instantaneousCurrentValues.increment(c.index);
+			setterCurrent.instantaneousCountersValues.increment(c.index);
 		}
 		public void add(InstantaneousCounter c, long value) {
-			counterData.instantaneousCurrentValues.addAndGet(c.index, value);
-			setterCurrent.instantaneousCountersValues.addAndGet(c.index, value);
+			if (c.relaxed) {
+				counterData.add(c, value);
+				return;
+			}
+			counterData.instantaneousCurrentValues.add(c.index, value);
+			setterCurrent.instantaneousCountersValues.add(c.index, value);
 		}
 		public void dec(InstantaneousCounter c) {
-			counterData.instantaneousCurrentValues.decrementAndGet(c.index);
-			setterCurrent.instantaneousCountersValues.decrementAndGet(c.index);
+			if (c.relaxed) {
+				counterData.dec(c);
+				return;
+			}
+			counterData.instantaneousCurrentValues.decrement(c.index);
+			setterCurrent.instantaneousCountersValues.decrement(c.index);
 		}
 		// Measure counter
 		public void recordValue(MeasureCounter c, long value) {
-			setterCurrent.measureCountersCounts.incrementAndGet(c.index);
-			setterCurrent.measureCountersCounts.addAndGet(c.index, value);
+			if (c.relaxed) {
+				counterData.recordValue(c, value);
+				return;
+			}
+			setterCurrent.measureCountersCounts.increment(c.index);
+			setterCurrent.measureCountersValues.add(c.index, value);
+			if (c.minMax) {
+				setterCurrent.measureCountersMinMax.record(c.index, value);
+			}
 		}
 		public void recordValueWithCount(MeasureCounter c, long value, long count) {
-			setterCurrent.measureCountersCounts.addAndGet(c.index, count);
-			setterCurrent.measureCountersCounts.addAndGet(c.index, value);
+			if (c.relaxed) {
+				counterData.recordValueWithCount(c, value, count);
+				return;
+			}
+			setterCurrent.measureCountersCounts.add(c.index, count);
+			setterCurrent.measureCountersValues.add(c.index, value);
+			if (c.minMax && count > 0) {
+				setterCurrent.measureCountersMinMax.record(c.index, value / count);
+			}
 		}
 		// Histogram
 		public void recordValue(HistogramCounter c, long value) {
-			setterCurrent.histograms[c.index].recordValue(value);
+			setterCurrent.histogram(c).recordValue(value);
 		}
 		public void recordValueWithCount(HistogramCounter c, long value, long count) {
-			setterCurrent.histograms[c.index].recordValueWithCount(value, count);
+			setterCurrent.histogram(c).recordValueWithCount(value, count);
 		}
 		// Hi res -- setting it in a consistent way with other counters is not applicable
+		// Relaxed counters are updated as usual, they are not consistent with the others
+	}
+	
+	/**
+	 * Same guarantee as Setter: all updates made between prepare() and terminate()
+	 * are accounted in the same slot. Updates are accumulated in plain arrays and
+	 * published to the CounterData in a single critical section, when flush() is
+	 * called or, at terminate(), when the sampler asked for it. The sampler asks
+	 * one hi-res period before each sample, so threads that keep terminating blocks
+	 * publish in time. Blocks of threads that stay idle are published at their
+	 * next terminate() or flush(), in a later slot.
+	 * 
+	 * A BufferedSetter must only be used by one thread.
+	 */
+	public static class BufferedSetter {
+		private CounterData counterData;
+		private long[] incrementalDeltas;
+		private long[] instantaneousDeltas;
+		private long[] instantaneousSetValues;
+		private boolean[] instantaneousSet;
+		private long[] measureCounts;
+		private long[] measureValues;
+		// for MIN_MAX counters
+		private long[] measureMins;
+		private long[] measureMaxs;
+		private long[] measureLasts;
+		// histogram records: counter index, value, count
+		private int[] histogramIndexes;
+		private long[] histogramValues;
+		private long[] histogramCounts;
+		private int histogramRecords;
+		private boolean dirty;
+		private long flushedEpoch;
+		
+		public BufferedSetter(CounterData cd) {
+			counterData = cd;
+			incrementalDeltas = new long[cd.incrementalCounters.length];
+			instantaneousDeltas = new long[cd.instantaneousCounters.length];
+			instantaneousSetValues = new long[cd.instantaneousCounters.length];
+			instantaneousSet = new boolean[cd.instantaneousCounters.length];
+			measureCounts = new long[cd.measureCounters.length];
+			measureValues = new long[cd.measureCounters.length];
+			measureMins = new long[cd.measureCounters.length];
+			measureMaxs = new long[cd.measureCounters.length];
+			measureLasts = new long[cd.measureCounters.length];
+			Arrays.fill(measureMins, Long.MAX_VALUE);
+			Arrays.fill(measureMaxs, Long.MIN_VALUE);
+			histogramIndexes = new int[16];
+			histogramValues = new long[16];
+			histogramCounts = new long[16];
+			flushedEpoch = cd.flushEpoch;
+		}
+		
+		public void prepare() {
+			// nothing to do, the critical section is entered when flushing
+		}
+		
+		public void terminate() {
+			if (counterData.flushEpoch != flushedEpoch) {
+				flush();
+			}
+		}
+		
+		/** publishes all the accumulated updates, only between terminate() and prepare() */
+		public void flush() {
+			flushedEpoch = counterData.flushEpoch;
+			if (!dirty) {
+				return;
+			}
+			CounterData cd = counterData;
+			long w = cd.wrp.writerCriticalSectionEnter();
+			Data d = cd.current;
+			for (int i = 0; i < incrementalDeltas.length; i++) {
+				long delta = incrementalDeltas[i];
+				if (delta != 0) {
+					if (cd.incrementalCounters[i].relaxed) {
+						cd.relaxedIncrementalValues.add(i, delta);
+					} else {
+						d.incrementalCountersValues.add(i, delta);
+					}
+					incrementalDeltas[i] = 0;
+				}
+			}
+			for (int i = 0; i < instantaneousDeltas.length; i++) {
+				long delta = instantaneousDeltas[i];
+				if (instantaneousSet[i]) {
+					long value = instantaneousSetValues[i] + delta;
+					long oldValue = cd.instantaneousCurrentValues.getAndSet(i, value);
+					if (!cd.instantaneousCounters[i].relaxed) {
+						d.instantaneousCountersValues.add(i, -oldValue + value);
+					}
+					instantaneousSet[i] = false;
+				} else if (delta != 0) {
+					cd.instantaneousCurrentValues.add(i, delta);
+					if (!cd.instantaneousCounters[i].relaxed) {
+						d.instantaneousCountersValues.add(i, delta);
+					}
+				}
+				instantaneousDeltas[i] = 0;
+			}
+			for (int i = 0; i < measureCounts.length; i++) {
+				if (measureCounts[i] != 0 || measureValues[i] != 0) {
+					if (cd.measureCounters[i].relaxed) {
+						cd.relaxedMeasureCounts.add(i, measureCounts[i]);
+						cd.relaxedMeasureValues.add(i, measureValues[i]);
+					} else {
+						d.measureCountersCounts.add(i, measureCounts[i]);
+						d.measureCountersValues.add(i, measureValues[i]);
+					}
+					if (measureMins[i] <= measureMaxs[i]) {
+						// relaxed or not, like recordRelaxedMinMax()
+						d.measureCountersMinMax.record(i, measureMins[i], measureMaxs[i], measureLasts[i]);
+						measureMins[i] = Long.MAX_VALUE;
+						measureMaxs[i] = Long.MIN_VALUE;
+					}
+					measureCounts[i] = 0;
+					measureValues[i] = 0;
+				}
+			}
+			for (int i = 0; i < histogramRecords; i++) {
+				d.histogram(cd.histogramCounters[histogramIndexes[i]])
+						.recordValueWithCount(histogramValues[i], histogramCounts[i]);
+			}
+			histogramRecords = 0;
+			cd.wrp.writerCriticalSectionExit(w);
+			dirty = false;
+		}
+		
+		// Incremental counter
+		public void inc(IncrementalCounter c) {
+			++incrementalDeltas[c.index];
+			dirty = true;
+		}
+		public void add(IncrementalCounter c, long value) {
+			incrementalDeltas[c.index] += value;
+			dirty = true;
+		}
+		// Instantaneous counter
+		public void set(InstantaneousCounter c, long value) {
+			instantaneousSet[c.index] = true;
+			instantaneousSetValues[c.index] = value;
+			instantaneousDeltas[c.index] = 0;
+			dirty = true;
+		}
+		public void inc(InstantaneousCounter c) {
+			++instantaneousDeltas[c.index];
+			dirty = true;
+		}
+		public void add(InstantaneousCounter c, long value) {
+			instantaneousDeltas[c.index] += value;
+			dirty = true;
+		}
+		public void dec(InstantaneousCounter c) {
+			--instantaneousDeltas[c.index];
+			dirty = true;
+		}
+		// Measure counter
+		public void recordValue(MeasureCounter c, long value) {
+			++measureCounts[c.index];
+			measureValues[c.index] += value;
+			if (c.minMax) {
+				recordMinMax(c.index, value);
+			}
+			dirty = true;
+		}
+		public void recordValueWithCount(MeasureCounter c, long value, long count) {
+			measureCounts[c.index] += count;
+			measureValues[c.index] += value;
+			if (c.minMax && count > 0) {
+				recordMinMax(c.index, value / count);
+			}
+			dirty = true;
+		}
+		private void recordMinMax(int index, long value) {
+			measureMins[index] = Math.min(measureMins[index], value);
+			measureMaxs[index] = Math.max(measureMaxs[index], value);
+			measureLasts[index] = value;
+		}
+		// Histogram
+		public void recordValue(HistogramCounter c, long value) {
+			recordValueWithCount(c, value, 1);
+		}
+		public void recordValueWithCount(HistogramCounter c, long value, long count) {
+			if (histogramRecords == histogramIndexes.length) {
+				histogramIndexes = Arrays.copyOf(histogramIndexes, histogramRecords * 2);
+				histogramValues = Arrays.copyOf(histogramValues, histogramRecords * 2);
+				histogramCounts = Arrays.copyOf(histogramCounts, histogramRecords * 2);
+			}
+			histogramIndexes[histogramRecords] = c.index;
+			histogramValues[histogramRecords] = value;
+			histogramCounts[histogramRecords] = count;
+			++histogramRecords;
+			dirty = true;
+		}
+	}
+	
+	/** asks BufferedSetters to publish their updates at their next terminate() */
+	void requestFlush() {
+		++flushEpoch; // only the sampler thread writes it
 	}
 
 	@Override
 	public void sampleHiRes() {
+		// Ticks run on their own thread, concurrently with sample(): enter the
+		// phaser like a writer, so that sample() waits for a tick that got
+		// the Data it is about to take. Plain increments are enough, since
+		// only the hi-res thread ever writes hiResSlots.
+		if (!hasSampledHiResCounters) {
+			return;
+		}
+		long w = wrp.writerCriticalSectionEnter();
 		Data data = current;
+		++data.hiResTicks;
 		for (int i = 0; i < hiResState.length(); i++) {
-			int val = hiResState.get(i);
-			++data.hiResSlots[i][val];
-			// we can do this because we're the only writer ever in hiResSlots, and the only reader at this time
-			// because the CounterMgr calls sampleHiRes() only sequentially
+			if (hiResCounters[i].exact) {
+				continue;
+			}
+			ThreadStates states = hiResThreadStates[i];
+			if (states == null) {
+				int val = hiResState.get(i);
+				++data.hiResSlots[i][val];
+				continue;
+			}
+			// one tick per registered thread, in its state
+			long[] slots = data.hiResSlots[i];
+			int size = states.size();
+			for (int slot = 0; slot < size; slot += ThreadStates.CHUNK_SLOTS) {
+				AtomicLongArray chunk = states.chunk(slot);
+				int end = Math.min(size - slot, ThreadStates.CHUNK_SLOTS) * CellLayout.CACHE_LINE_LONGS;
+				for (int pos = 0; pos < end; pos += CellLayout.CACHE_LINE_LONGS) {
+					long val = chunk.get(pos);
+					if (val != ThreadStates.FREE) {
+						++slots[(int)val];
+					}
+				}
+			}
 		}
+		wrp.writerCriticalSectionExit(w);
 	}
 	
 	@Override
-	public void sample(SampleType sampleType, SampleCollector sampleCollector) {
+	public void sample(SampleType sampleType, SampleSink sink) {
 		Data data = current;
 		try {
 			wrp.readerLock();
@@ -282,24 +772,26 @@ public class CounterData implements PerfSampleable {
 			if (sampleType == SampleType.Normal || sampleType == SampleType.Histo) {
 			
 				// reset other
-				for (int i = 0; i < other.incrementalCountersValues.length(); i++) {
-					other.incrementalCountersValues.set(i, 0);
-				}
-				for (int i = 0; i < other.instantaneousCountersValues.length(); i++) {
-					other.instantaneousCountersValues.set(i, 0);
-				}
-				for (int i = 0; i < other.measureCountersCounts.length(); i++) {
-					other.measureCountersCounts.set(i, 0);
-					other.measureCountersValues.set(i, 0);
-				}
-				for (int i = 0; i < other.histograms.length; i++) {
-					other.histograms[i].reset();
+				other.incrementalCountersValues.reset();
+				other.instantaneousCountersValues.reset();
+				other.measureCountersCounts.reset();
+				other.measureCountersValues.reset();
+				if (other.measureCountersMinMax != null) {
+					other.measureCountersMinMax.reset();
 				}
+				other.resetHistograms();
+				other.hiResTicks = 0;
 				for (int i = 0; i < other.hiResSlots.length; i++) {
 					long[] slots = other.hiResSlots[i];
 					for (int j = 0; j < slots.length; j++) {
 						slots[j] = 0;
 					}
+					AtomicLongArray nanos = other.hiResNanos[i];
+					if (nanos != null) {
+						for (int j = 0; j < nanos.length(); j++) {
+							nanos.lazySet(j, 0);
+						}
+					}
 				}
 				
 				// swap data with other
@@ -317,13 +809,20 @@ public class CounterData implements PerfSampleable {
 				
 				data = current;
 				
+				foldRelaxed(other);
+				other.mergeHistogramStripes();
+				closeExactStates(other);
+				long now = System.nanoTime();
+				other.durationNanos = now - lastSampleNanos;
+				lastSampleNanos = now;
+				
 				// Now take a sample from "other". Needs the previous sample, because
 				// values to show for some counters are cumulative from
 				// previous values (e.g., instantaneous counters)
 			
-				SampleData sample = new SampleData(this, other, lastSample);
-				sampleCollector.add(name, instance, sample);
-				lastSample = sample;
+				// The history keeps the values, not the sample: update it in place
+				sink.histogramBuffer = lastSample.set(this, other, lastSample, sink.histogramBuffer);
+				sink.add(name, instance, lastSample);
 			}
 		}
 		finally {
@@ -331,4 +830,53 @@ public class CounterData implements PerfSampleable {
 		}
 	}
 	
+	/**
+	 * Adds to data the time EXACT hi-res counters spent in their current state
+	 * since they entered it or since the last sample. Writers that change
+	 * the state meanwhile account from the new timestamp, in the next slot.
+	 */
+	private void closeExactStates(Data data) {
+		for (int i = 0; i < hiResCounters.length; i++) {
+			if (!hiResCounters[i].exact) {
+				continue;
+			}
+			ThreadStates states = hiResThreadStates[i];
+			if (states == null) {
+				moveExactState(data, i, hiResExactState, i, KEEP_STATE);
+				continue;
+			}
+			int size = states.size();
+			for (int slot = 0; slot < size; slot++) {
+				moveExactState(data, i, states.chunk(slot), ThreadStates.position(slot), KEEP_STATE);
+			}
+		}
+	}
+	
+	/**
+	 * Adds to data what relaxed counters got since the last sample. Their
+	 * cells in data are not used otherwise, so they are still zero.
+	 */
+	private void foldRelaxed(Data data) {
+		for (int i = 0; i < incrementalCounters.length; i++) {
+			if (incrementalCounters[i].relaxed) {
+				data.incrementalCountersValues.add(i,
+						relaxedIncrementalValues.get(i) - lastSample.incrementalCountersCumulative[i]);
+			}
+		}
+		for (int i = 0; i < instantaneousCounters.length; i++) {
+			if (instantaneousCounters[i].relaxed) {
+				data.instantaneousCountersValues.add(i,
+						instantaneousCurrentValues.get(i) - lastSample.instantaneousCountersValue[i]);
+			}
+		}
+		for (int i = 0; i < measureCounters.length; i++) {
+			if (measureCounters[i].relaxed) {
+				data.measureCountersCounts.add(i,
+						relaxedMeasureCounts.get(i) - lastSample.measureCountersCountsCumulative[i]);
+				data.measureCountersValues.add(i,
+						relaxedMeasureValues.get(i) - lastSample.measureCountersValuesCumulative[i]);
+			}
+		}
+	}
+	
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package net.florianx.jperfcounters.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -10,16 +11,27 @@ import org.HdrHistogram.Histogram;
 public class CounterDataBuilder {
 	
 	private CounterMgr counterMgr;
+	private String name;
 	private ArrayList<IncrementalCounter> incrementalCounters;
 	private ArrayList<InstantaneousCounter> instantaneousCounters;
 	private ArrayList<MeasureCounter> measureCounters;
 	private ArrayList<HistogramCounter> histogramCounters;
 	private ArrayList<HiResCounter<? extends Enum<?>>> hiResCounters;
-	private CounterData counterData;
+	private CounterData counterData; // null when building a template
+	private boolean padded;
+	private boolean singleWriter;
+	private String affinityGroup;
+	private TimeUnit timeUnit = TimeUnit.MILLISECONDS;
 	
 	public CounterDataBuilder(CounterMgr counterMgr, String name, String instance) {
-		this.counterMgr = counterMgr;
+		this(counterMgr, name);
 		counterData = new CounterData(name, instance);
+	}
+	
+	/** builder of a template, see CounterMgr.createTemplateBuilder() */
+	CounterDataBuilder(CounterMgr counterMgr, String name) {
+		this.counterMgr = counterMgr;
+		this.name = name;
 		incrementalCounters = new ArrayList<>();
 		instantaneousCounters = new ArrayList<>();
 		measureCounters = new ArrayList<>();
@@ -27,44 +39,140 @@ public class CounterDataBuilder {
 		hiResCounters = new ArrayList<>();
 	}
 	
-	public IncrementalCounter createIncrementalCounter(String name) {
-		IncrementalCounter c = new IncrementalCounter(counterData, name, incrementalCounters.size());
+	/**
+	 * Gives each counter its own cache line, so that counters updated by
+	 * different threads do not slow each other down by sharing a line.
+	 * Costs a cache line per counter and per copy of the data.
+	 */
+	public CounterDataBuilder padded() {
+		padded = true;
+		return this;
+	}
+	
+	/**
+	 * Declares that counters of this CounterData are only ever updated by one
+	 * thread, for example an event loop or a partition consumer. Updates then use plain
+	 * increments published with ordered stores rather than atomic operations
+	 * and the phaser, like RELAXED counters. Histograms still go through the
+	 * phaser, but record without atomic operations.
+	 */
+	public CounterDataBuilder singleWriter() {
+		singleWriter = true;
+		return this;
+	}
+	
+	/**
+	 * Counters created after this call are packed together, on cache lines
+	 * of their own. Use a group per set of counters updated by the same
+	 * threads. null goes back to the default group.
+	 */
+	public CounterDataBuilder affinityGroup(String group) {
+		affinityGroup = group;
+		return this;
+	}
+	
+	/**
+	 * Unit of the durations recorded by the TimedCounter methods of measure
+	 * and histogram counters created after this call. Milliseconds by default.
+	 */
+	public CounterDataBuilder timeUnit(TimeUnit unit) {
+		timeUnit = unit;
+		return this;
+	}
+	
+	public IncrementalCounter createIncrementalCounter(String name, CounterOption... options) {
+		EnumSet<CounterOption> o = checkOptions(name, options, CounterOption.STRIPED, CounterOption.RELAXED);
+		IncrementalCounter c = new IncrementalCounter(counterData, name, incrementalCounters.size(), o);
+		c.group = affinityGroup;
 		incrementalCounters.add(c);
 		return c;
 	}
 
-	public InstantaneousCounter createInstantaneousCounter(String name) {
-		InstantaneousCounter c = new InstantaneousCounter(counterData, name, instantaneousCounters.size());
+	public InstantaneousCounter createInstantaneousCounter(String name, CounterOption... options) {
+		EnumSet<CounterOption> o = checkOptions(name, options, CounterOption.RELAXED);
+		InstantaneousCounter c = new InstantaneousCounter(counterData, name, instantaneousCounters.size(), o);
+		c.group = affinityGroup;
 		instantaneousCounters.add(c);
 		return c;
 	}
 
-	public MeasureCounter createMeasureCounter(String name) {
-		MeasureCounter c = new MeasureCounter(counterData, name, measureCounters.size());
+	public MeasureCounter createMeasureCounter(String name, CounterOption... options) {
+		EnumSet<CounterOption> o = checkOptions(name, options,
+				CounterOption.STRIPED, CounterOption.RELAXED, CounterOption.MIN_MAX);
+		MeasureCounter c = new MeasureCounter(counterData, name, measureCounters.size(), o);
+		c.group = affinityGroup;
+		c.timeUnit = timeUnit;
 		measureCounters.add(c);
 		return c;
 	}
 
-	public HistogramCounter createHistogramCounter(String name) {
-		HistogramCounter c = new HistogramCounter(counterData, name, histogramCounters.size());
+	/** histogram from 10 to 60000 (10ms to 1 minute), with 2 significant digits */
+	public HistogramCounter createHistogramCounter(String name, CounterOption... options) {
+		return createHistogramCounter(name, 10, 1000 * 60, 2, options);
+	}
+
+	/** see HdrHistogram's Histogram for the meaning of the parameters */
+	public HistogramCounter createHistogramCounter(String name,
+			long lowestDiscernibleValue, long highestTrackableValue, int numberOfSignificantValueDigits,
+			CounterOption... options) {
+		EnumSet<CounterOption> o = checkOptions(name, options,
+				CounterOption.STRIPED, CounterOption.AUTO_RESIZE, CounterOption.PACKED);
+		if (o.contains(CounterOption.STRIPED) && o.contains(CounterOption.PACKED)) {
+			throw new IllegalArgumentException("Options PACKED and STRIPED cannot be combined for counter " + name);
+		}
+		HistogramCounter c = new HistogramCounter(counterData, name, histogramCounters.size(),
+				lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits, o);
+		c.timeUnit = timeUnit;
 		histogramCounters.add(c);
 		return c;
 	}
 	
-	public <E extends Enum<?>> HiResCounter<E> createHiResCounter(String name, E[] stateValues) {
-		HiResCounter<E> c = new HiResCounter<E>(counterData, name, stateValues, hiResCounters.size());
+	public <E extends Enum<?>> HiResCounter<E> createHiResCounter(String name, E[] stateValues, CounterOption... options) {
+		EnumSet<CounterOption> o = checkOptions(name, options, CounterOption.EXACT, CounterOption.PER_THREAD);
+		if (o.contains(CounterOption.EXACT) && stateValues.length > CounterData.MAX_EXACT_STATES) {
+			throw new IllegalArgumentException("Too many states for EXACT counter " + name + ": " + stateValues.length);
+		}
+		HiResCounter<E> c = new HiResCounter<E>(counterData, name, stateValues, hiResCounters.size(), o);
 		hiResCounters.add(c);
 		return c;
 	}
 	
+	private static EnumSet<CounterOption> checkOptions(String name, CounterOption[] options, CounterOption... allowed) {
+		EnumSet<CounterOption> o = EnumSet.noneOf(CounterOption.class);
+		for (CounterOption option: options) {
+			if (!Arrays.asList(allowed).contains(option)) {
+				throw new IllegalArgumentException("Option " + option + " does not apply to counter " + name);
+			}
+			o.add(option);
+		}
+		return o;
+	}
+	
 	public CounterData create() {
-		counterData.init(incrementalCounters, instantaneousCounters, measureCounters, histogramCounters, hiResCounters);
+		if (counterData == null) {
+			throw new IllegalStateException("Builder of template " + name + ": use createTemplate()");
+		}
+		counterData.init(newTemplate());
 		counterMgr.registerCounterData(counterData);
 		
 		CounterData cd = counterData;
 		counterData = null;
 		return cd;
 	}
+	
+	/** for builders from CounterMgr.createTemplateBuilder() */
+	public CounterTemplate createTemplate() {
+		if (counterData != null) {
+			throw new IllegalStateException("Builder of instance " + counterData.getInstance() + " of " + name
+					+ ": use create()");
+		}
+		return newTemplate();
+	}
+	
+	private CounterTemplate newTemplate() {
+		return new CounterTemplate(counterMgr, name, incrementalCounters, instantaneousCounters, measureCounters,
+				histogramCounters, hiResCounters, padded, singleWriter);
+	}
 }
 
 
@@ -1,163 +1,403 @@
 package net.florianx.jperfcounters.core;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 
 public class CounterMgr {
+	
+	/**
+	 * Name and instance of the CounterData where the sampler threads record
+	 * their overruns: ticks and slots they missed (hiResOverruns, slotOverruns),
+	 * how late they ran (hiResLateness, slotLateness), how long each sample
+	 * took (sampleDuration) and the hi-res period in use (hiResPeriod), in
+	 * microseconds.
+	 */
+	public static final String SAMPLER_NAME = "jperfcounters";
+	public static final String SAMPLER_INSTANCE = "sampler";
+	
+	private static final long SEGMENT_BYTES = 16 << 20;
 
-	private long sampleFreqHiResMillis;
-	private int sampleNormalMultiplier;
-	private int sampleHistoMultiplier;
-	private ScheduledExecutorService executor;
-	// Map by name, then instance
-	private HashMap<String, HashMap<String, CounterData>> sampleableList;
+	// Sampling configuration, read by the sampler threads at each deadline
+	private volatile long slotPeriodNanos;
+	private volatile int histogramSlots; // Histo sample every histogramSlots slots
+	private volatile int hiResPerSlot;
+	private volatile double hiResCpuBudget; // fraction of a CPU, 0 for none
+	private volatile int samplingThreads;
+	// Map by name, then instance. Registrations update it without locking
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, CounterData>> sampleableList;
+	// CounterData registered or unregistered since sampleables was last published
+	private ConcurrentLinkedQueue<CounterData> pendingChanges;
+	// CounterData of sampleables, only changed under its lock
+	private LinkedHashSet<CounterData> published;
+	// published changed since sampleables were built
+	private volatile boolean stale;
+	// sampler threads are running and drain pendingChanges, else registrations do
+	private volatile boolean sampling;
+	// Copy of sampleableList for the sampler threads, replaced when they see changes
+	private volatile CounterData[] sampleables;
+	// Same, only with the CounterData that have hi-res counters to tick (not EXACT)
+	private volatile CounterData[] hiResSampleables;
+	private Sampler sampler;
+	private boolean shutdown; // shutdown() is final, sampling cannot be started again
 	
 	private SampleCollector sampleCollector;
 	
-	public CounterMgr(ScheduledExecutorService executor) {
-		this.sampleFreqHiResMillis = 10; // 100/sec
-		this.sampleNormalMultiplier = (int)(1000 / sampleFreqHiResMillis); // 2 secs
-		this.sampleHistoMultiplier = (int)(10000 / sampleFreqHiResMillis); // 10 secs
-		this.executor = executor;
-		sampleableList = new HashMap<>();
+	public CounterMgr() {
+		this.slotPeriodNanos = TimeUnit.SECONDS.toNanos(1);
+		this.histogramSlots = 10; // 10 secs
+		this.hiResPerSlot = 100; // 100/sec
+		this.samplingThreads = 1;
+		sampleableList = new ConcurrentHashMap<>();
+		pendingChanges = new ConcurrentLinkedQueue<>();
+		published = new LinkedHashSet<>();
+		sampleables = new CounterData[0];
+		hiResSampleables = new CounterData[0];
 		sampleCollector = new SampleCollector(1000);
 	}
 	
+	/**
+	 * @deprecated sampling runs on threads of its own, the executor is not used;
+	 * use {@link #CounterMgr()}
+	 */
+	@Deprecated
+	public CounterMgr(ScheduledExecutorService executor) {
+		this();
+	}
+	
+	/** configured hi-res period, the adaptive mode may use a longer one */
 	public long getSampleFreqHiResMillis() {
-		return sampleFreqHiResMillis;
+		return TimeUnit.NANOSECONDS.toMillis(slotPeriodNanos / hiResPerSlot);
 	}
+	/** hi-res samplings per slot */
 	public int getSampleNormalMultiplier() {
-		return sampleNormalMultiplier;
+		return hiResPerSlot;
 	}
+	/** hi-res samplings per Histo sample */
 	public int getSampleHistoMultiplier() {
-		return sampleHistoMultiplier;
+		return hiResPerSlot * histogramSlots;
+	}
+	long getSlotPeriodNanos() {
+		return slotPeriodNanos;
+	}
+	int getHistogramSlots() {
+		return histogramSlots;
+	}
+	double getHiResCpuBudget() {
+		return hiResCpuBudget;
+	}
+	int getSamplingThreads() {
+		return samplingThreads;
 	}
 	
-	public void setSamplingRate(long period, TimeUnit tu) {
+	/**
+	 * Sets the length of a slot, the period of Normal samples. Can be called
+	 * while sampling: the current slot ends one new period after it started.
+	 */
+	public synchronized void setSamplingRate(long period, TimeUnit tu) {
+		long nanos = tu.toNanos(period);
+		if (nanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+			throw new IllegalArgumentException("Sampling period too short: " + period + " " + tu);
+		}
+		slotPeriodNanos = nanos;
+		reconfigure();
 	}
 	
-	public void setHistogramSamplingPeriods(int periods) {
+	/** Takes a Histo sample instead of a Normal one every given number of slots */
+	public synchronized void setHistogramSamplingPeriods(int periods) {
+		if (periods < 1) {
+			throw new IllegalArgumentException("Histogram sampling periods must be positive: " + periods);
+		}
+		histogramSlots = periods;
+		reconfigure();
+	}
+	
+	/** Sets the number of hi-res samplings per slot */
+	public synchronized void setHiResSamplingsPerPeriod(int samples) {
+		if (samples < 1) {
+			throw new IllegalArgumentException("Hi-res samplings per period must be positive: " + samples);
+		}
+		hiResPerSlot = samples;
+		reconfigure();
 	}
 	
-	public void setHiResSamplingsPerPeriod(int samples) {
+	/**
+	 * Lets the hi-res sampling lower its frequency when its ticks take more
+	 * than the given fraction of a CPU (0.01 for 1%), and raise it again when
+	 * they take much less, never above the configured frequency. 0, the
+	 * default, always samples at the configured frequency. The period in use
+	 * is reported in the hiResPeriod counter of the sampler's CounterData.
+	 */
+	public synchronized void setHiResCpuBudget(double budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("Negative CPU budget: " + budget);
+		}
+		hiResCpuBudget = budget;
+		reconfigure();
+	}
+	
+	/**
+	 * Samples slots on up to the given number of threads, for large numbers
+	 * of CounterData: each thread samples a part of them, of at least a few
+	 * hundred CounterData. 1, the default, samples on the sampler thread only.
+	 * Takes effect at the next slot.
+	 */
+	public void setSamplingThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Sampling threads must be positive: " + threads);
+		}
+		samplingThreads = threads;
+	}
+	
+	/**
+	 * Keeps the given number of slots in the history, 1000 by default.
+	 * compressed keeps the slots older than the last 128 in blocks encoded
+	 * by delta of delta, usually a few bits per value instead of 64, for a
+	 * history of days rather than minutes in the same memory. Must be called
+	 * before init(), it empties the history.
+	 */
+	public synchronized void setHistory(int slots, boolean compressed) {
+		if (slots < 1) {
+			throw new IllegalArgumentException("History slots must be positive: " + slots);
+		}
+		checkNotStarted("History set");
+		sampleCollector.setHistory(slots, compressed);
+	}
+	
+	/**
+	 * Adds a rollup tier to the history, after the ones added before: each
+	 * slot of the tier sums up the given number of slots of the previous
+	 * tier, and the tier keeps historySize of them. For example, with 1
+	 * second slots, addRollup(60, 1440) then addRollup(60, 720) keep a day
+	 * of minutes and a month of hours. Incremental and measure counters are
+	 * summed, instantaneous ones keep their last, lowest and highest value,
+	 * hi-res counters their summed ticks or nanos, and histograms are merged.
+	 * Rollups use the compression of the history. Must be called before
+	 * init(), and after setHistory().
+	 */
+	public synchronized void addRollup(int slots, int historySize) {
+		if (slots < 2 || historySize < 1) {
+			throw new IllegalArgumentException("Bad rollup: " + slots + " slots, history of " + historySize);
+		}
+		checkNotStarted("Rollup added");
+		sampleCollector.addRollup(slots, historySize);
+	}
+	
+	private void checkNotStarted(String change) {
+		if (shutdown) {
+			throw new IllegalStateException(change + " after shutdown()");
+		}
+		if (sampler != null) {
+			throw new IllegalStateException(change + " after init()");
+		}
+	}
+	
+	private void reconfigure() {
+		if (sampler != null) {
+			sampler.reconfigure();
+		}
 	}
 
 	public CounterDataBuilder createCounterBuilder(String name, String instance) {
 		return new CounterDataBuilder(this, name, instance);
 	}
 	
-	synchronized void registerCounterData(CounterData cd) {
-		HashMap<String, CounterData> n = sampleableList.get(cd.getName());
+	/**
+	 * Builder of a template for the instances of a collection, see
+	 * CounterTemplate. Finish it with createTemplate() instead of create().
+	 */
+	public CounterDataBuilder createTemplateBuilder(String name) {
+		return new CounterDataBuilder(this, name);
+	}
+	
+	void registerCounterData(CounterData cd) {
+		ConcurrentHashMap<String, CounterData> n = sampleableList.get(cd.getName());
 		if (n == null) {
-			n = new HashMap<String, CounterData>();
-			sampleableList.put(cd.getName(), n);
+			n = new ConcurrentHashMap<String, CounterData>();
+			ConcurrentHashMap<String, CounterData> other = sampleableList.putIfAbsent(cd.getName(), n);
+			if (other != null) {
+				n = other;
+			}
 		}
-		CounterData oldCd = n.get(cd.getInstance());
+		CounterData oldCd = n.putIfAbsent(cd.getInstance(), cd);
 		if (oldCd != null) {
 			throw new InternalError("Instance already exists: " + cd.getName() + ":" + cd.getInstance());
 		}
-		n.put(cd.getInstance(), cd);
+		queueChange(cd);
 	}
 	
-	synchronized void unregisterCounterData(CounterData cd) {
-		HashMap<String, CounterData> n = sampleableList.get(cd.getName());
+	/**
+	 * Stops sampling cd, for example at the end of the request or session
+	 * it was created for. Its name and instance can then be registered again.
+	 * Does not wait for a sample in progress.
+	 */
+	public void unregisterCounterData(CounterData cd) {
+		ConcurrentHashMap<String, CounterData> n = sampleableList.get(cd.getName());
 		if (n == null) {
 			throw new InternalError("Name does not exist: " + cd.getName());
 		}
-		CounterData oldCd = n.remove(cd.getInstance());
-		if (oldCd == null) {
+		if (!n.remove(cd.getInstance(), cd)) {
 			throw new InternalError("Instance does not exists: " + cd.getName() + ":" + cd.getInstance());
 		}
+		queueChange(cd);
+	}
+	
+	/**
+	 * Queues a change for the sampler threads. Without them, before init()
+	 * or after shutdown(), nothing would drain the queue: the change is
+	 * applied to published right away, and sampleables are built from it
+	 * when the sampler threads first ask for them.
+	 */
+	private void queueChange(CounterData cd) {
+		pendingChanges.add(cd);
+		if (!sampling) {
+			synchronized (published) {
+				drainChanges();
+			}
+		}
+	}
+	
+	private boolean isRegistered(CounterData cd) {
+		ConcurrentHashMap<String, CounterData> n = sampleableList.get(cd.getName());
+		return n != null && n.get(cd.getInstance()) == cd;
+	}
+	
+	/**
+	 * Publishes new sampleables if CounterData were registered or
+	 * unregistered since the last call. Each change is queued after it is
+	 * made in sampleableList, so checking sampleableList for the queued
+	 * CounterData is enough to get the latest state, in whatever order
+	 * concurrent changes were queued.
+	 */
+	private void updateSampleables() {
+		if (pendingChanges.isEmpty() && !stale) {
+			return;
+		}
+		synchronized (published) {
+			drainChanges();
+			if (!stale) {
+				return;
+			}
+			stale = false;
+			ArrayList<CounterData> hiResList = new ArrayList<>();
+			for (CounterData c: published) {
+				if (c.hasSampledHiResCounters()) {
+					hiResList.add(c);
+				}
+			}
+			sampleables = published.toArray(new CounterData[published.size()]);
+			hiResSampleables = hiResList.toArray(new CounterData[hiResList.size()]);
+		}
+	}
+	
+	/** applies the queued changes to published, with its lock held */
+	private void drainChanges() {
+		CounterData cd;
+		while ((cd = pendingChanges.poll()) != null) {
+			if (isRegistered(cd)) {
+				stale |= published.add(cd);
+			} else {
+				stale |= published.remove(cd);
+			}
+		}
+	}
+	
+	/**
+	 * All registered CounterData, for the sampler threads. Registrations
+	 * never wait for the sampler: they are picked up by the next call.
+	 */
+	CounterData[] getSampleables() {
+		updateSampleables();
+		return sampleables;
+	}
+	
+	/** registered CounterData that have hi-res counters to tick, see getSampleables() */
+	CounterData[] getHiResSampleables() {
+		updateSampleables();
+		return hiResSampleables;
+	}
+	
+	/**
+	 * Exports the values of all counters in a memory-mapped file, updated at
+	 * each sample, that other processes can read with PerfDataReader.
+	 * CounterData that do not fit in the given size are not exported.
+	 * Entries are not reclaimed when CounterData are unregistered: a
+	 * CounterData registered again with the same name and instance reuses
+	 * its entry, but CounterData with a new instance each time, such as one
+	 * per request, end up filling the file, see PerfDataReader.isOverflow().
+	 * Replaces and closes the file of a previous call.
+	 */
+	public synchronized void exportTo(File file, int sizeBytes) throws IOException {
+		if (shutdown) {
+			throw new IllegalStateException("Export set after shutdown()");
+		}
+		PerfDataWriter previous = sampleCollector.setPerfDataWriter(new PerfDataWriter(file, sizeBytes));
+		if (previous != null) {
+			// a sample in progress can still write to its mapping, that stays valid
+			previous.close();
+		}
+	}
+	
+	/**
+	 * Appends each slot to segment files in directory, and reads the slots
+	 * that are no longer in memory from them, so that the history survives
+	 * restarts. Slots are numbered after the ones in the directory. Files
+	 * are synced every second and by shutdown(), and a slot torn by a crash
+	 * is dropped at the next start. Segments of 16 MB at most are deleted,
+	 * oldest first, when they take more than maxBytes or are older than
+	 * maxAge. Rollup tiers are not persisted. Must be called before init().
+	 */
+	public synchronized void persistTo(File directory, long maxBytes, long maxAge, TimeUnit unit) throws IOException {
+		checkNotStarted("Persistence set");
+		sampleCollector.setStore(new SegmentStore(directory, Math.min(SEGMENT_BYTES, maxBytes), maxBytes,
+				unit.toMillis(maxAge), 1000));
 	}
 	
 	public Reporter createReporter() {
 		return new Reporter(sampleCollector);
 	}
 
-	public void init() {
-		long startTs = System.currentTimeMillis();
-		long histoFreq = sampleFreqHiResMillis * sampleHistoMultiplier;
-		long histoDelay = histoFreq - (startTs % histoFreq);
-		
-		long hiResFreq = sampleFreqHiResMillis;
-		long hiResDelay = hiResFreq - (startTs % hiResFreq);
-		final long startingSampleCount = (histoFreq - (histoDelay - hiResDelay)) / hiResFreq;
-	
-		executor.scheduleAtFixedRate(new Runnable() {
-			long lastHiResRunTs = System.nanoTime();
-			long lastNormalRunTs = lastHiResRunTs;
-			long lastHistoRunTs = lastHiResRunTs;
-			long sampleCount = startingSampleCount;
-			public void run() {
-				try {
-					synchronized(CounterMgr.this) {
-						long currentRunTs = System.nanoTime();
-
-						// see if we're in a HiFreq, Normal or Histo sampling
-						PerfSampleable.SampleType sampleType = PerfSampleable.SampleType.HiFreq;
-						if (sampleCount % sampleHistoMultiplier == 0) {
-							sampleType = PerfSampleable.SampleType.Histo;
-						} else if (sampleCount % sampleNormalMultiplier == 0) {
-							sampleType = PerfSampleable.SampleType.Normal;
-						}
-						++sampleCount;
-
-						// do not run if we're too late
-						boolean skip = false;
-						switch (sampleType) {
-						case HiFreq:
-							long sinceLastHiRes = currentRunTs - lastHiResRunTs;
-							skip = (sinceLastHiRes > (sampleFreqHiResMillis * 2) * 1000_000L);
-							break;
-						case Normal:
-							long sinceLastNormal = currentRunTs - lastNormalRunTs;
-							skip = (sinceLastNormal > (sampleFreqHiResMillis * sampleNormalMultiplier * 2) * 1000_000L);
-							break;
-						case Histo:
-							long sinceLastHisto = currentRunTs - lastHistoRunTs;
-							skip = (sinceLastHisto > (sampleFreqHiResMillis * sampleHistoMultiplier * 2) * 1000_000L);
-							break;
-						}
-if (skip) {
-	System.out.println("We're late, skipping...");
-}
-						if (!skip) {
-							if (sampleType == PerfSampleable.SampleType.HiFreq) {
-								for (HashMap<String, CounterData> list: sampleableList.values()) {
-									for (CounterData cd: list.values()) {
-										cd.sampleHiRes();
-									}
-								}
-							} else {
-								sampleCollector.startSlot();
-								for (HashMap<String, CounterData> list: sampleableList.values()) {
-									for (CounterData cd: list.values()) {
-										cd.sample(sampleType, sampleCollector);
-									}
-								}
-								sampleCollector.endSlot();
-							}
-						}
-						switch (sampleType) {
-						case Histo:
-							lastHistoRunTs = currentRunTs;
-							// drop through
-						case Normal:
-							lastNormalRunTs = currentRunTs;
-							// drop through
-						case HiFreq:
-							lastHiResRunTs = currentRunTs;
-						}
-					}
-				}
-				catch (Throwable e) {
-					e.printStackTrace(System.err);
-					Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
-				}
+	/** starts sampling, on threads of its own. Does nothing if already started */
+	public synchronized void init() {
+		if (shutdown) {
+			throw new IllegalStateException("init() after shutdown()");
+		}
+		if (sampler == null) {
+			sampler = new Sampler(this, sampleCollector, createCounterBuilder(SAMPLER_NAME, SAMPLER_INSTANCE));
+			sampling = true;
+			sampler.start();
+		}
+	}
+	
+	/**
+	 * Stops sampling, closes the exported file and syncs and closes the
+	 * segment files, counters can still be updated. This is final: init()
+	 * cannot start sampling again.
+	 */
+	public synchronized void shutdown() {
+		if (shutdown) {
+			return;
+		}
+		shutdown = true;
+		if (sampler != null) {
+			sampler.stop();
+			sampler = null;
+			sampling = false;
+			synchronized (published) {
+				drainChanges(); // queued while the sampler threads were stopping
 			}
-		}, hiResDelay, sampleFreqHiResMillis, TimeUnit.MILLISECONDS);
+		}
+		try {
+			sampleCollector.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot close the counters files: " + e, e);
+		}
 	}
 
 }
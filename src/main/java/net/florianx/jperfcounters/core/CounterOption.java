@@ -0,0 +1,67 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Per counter options, given when creating a counter with a {@link CounterDataBuilder}.
+ * Not all options apply to all kinds of counters; the builder rejects the ones
+ * that do not.
+ */
+public enum CounterOption {
+	/**
+	 * Spread updates over several cells, each on its own cache line, and
+	 * pick the cell from the updating thread. Cells are folded back into one
+	 * value when sampling. Use it for counters updated by many threads at once.
+	 * Applies to incremental, measure and histogram counters. Histograms get one
+	 * histogram per stripe, merged when sampling.
+	 */
+	STRIPED,
+	/**
+	 * Update the counter with a single atomic operation, without entering
+	 * the phaser that keeps the counters of a CounterData consistent with
+	 * each other within a slot. The counter keeps a cumulative value and
+	 * the sample takes what was added since the previous one, so nothing is
+	 * lost, but an update racing with a sample may be accounted in the next
+	 * slot while other counters updated at the same time are not.
+	 * Applies to incremental, instantaneous and measure counters. The
+	 * extremes of MIN_MAX measure counters still enter the phaser, so that
+	 * the min and max of a slot come from the same values, but they may
+	 * land in another slot than the count and sum of the same value.
+	 */
+	RELAXED,
+	/**
+	 * Let the histogram grow to record values above its highest trackable value,
+	 * instead of failing with an ArrayIndexOutOfBoundsException.
+	 * Applies to histogram counters.
+	 */
+	AUTO_RESIZE,
+	/**
+	 * Keep histogram buckets in packed arrays, that only take space for the
+	 * buckets that hold values, and allocate the histogram on the first value
+	 * recorded in a slot. A histogram that stays empty for a whole slot is
+	 * released. Slower to record, but much smaller for CounterData that are
+	 * often idle. Applies to histogram counters, not with STRIPED.
+	 */
+	PACKED,
+	/**
+	 * Also keep the minimum, maximum and last value recorded in each slot.
+	 * With recordValueWithCount, the mean of the batch stands for its values.
+	 * Applies to measure counters.
+	 */
+	MIN_MAX,
+	/**
+	 * Account the exact time spent in each state, in nanoseconds: each
+	 * change of state adds the time since the previous change to the previous
+	 * state, and sampling adds the time since the last change to the current
+	 * state. The counter is not sampled by hi-res ticks. A change of state
+	 * racing with a sample may be accounted in the next slot. Applies to
+	 * hi-res counters with at most 256 states.
+	 */
+	EXACT,
+	/**
+	 * Keep one state per thread instead of one for the counter: each thread
+	 * registers with HiResCounter.register() and sets its own state through
+	 * the handle it gets. Hi-res ticks count the threads in each state, and
+	 * EXACT counters add up the time of all threads in each state. Applies
+	 * to hi-res counters.
+	 */
+	PER_THREAD
+}
@@ -0,0 +1,151 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.ArrayList;
+
+/**
+ * Counter definitions shared by the instances of a collection. Created
+ * once with a builder from {@link CounterMgr#createTemplateBuilder(String)},
+ * it creates instances that share its counters, the metadata of their
+ * samples and the layout of their cells, and only hold their own values.
+ * This makes instances of large collections, like one per session, cheaper
+ * to create and to keep.
+ *
+ * Counters of a template do not belong to an instance: update them through
+ * the instance, as in {@code cd.inc(requests)}, or through a Setter. Their
+ * own update methods cannot be used.
+ */
+public final class CounterTemplate {
+	
+	private CounterMgr counterMgr;
+	private String name;
+	
+	IncrementalCounter[] incrementalCounters;
+	InstantaneousCounter[] instantaneousCounters;
+	MeasureCounter[] measureCounters;
+	HistogramCounter[] histogramCounters;
+	HiResCounter<?>[] hiResCounters;
+	
+	SampleMetadata metadata;
+	boolean singleWriter;
+	
+	// Layout of the cells of each kind of counters, see CounterData
+	CellLayout incrementalLayout;
+	CellLayout instantaneousLayout;
+	CellLayout measureLayout;
+	CellLayout minMaxLayout;
+	
+	CounterTemplate(
+			CounterMgr counterMgr,
+			String name,
+			ArrayList<IncrementalCounter> incrementalCounters,
+			ArrayList<InstantaneousCounter> instantaneousCounters,
+			ArrayList<MeasureCounter> measureCounters,
+			ArrayList<HistogramCounter> histogramCounters,
+			ArrayList<HiResCounter<? extends Enum<?>>> hiResCounters,
+			boolean padded,
+			boolean singleWriter) {
+		this.counterMgr = counterMgr;
+		this.name = name;
+		
+		this.incrementalCounters = incrementalCounters.toArray(new IncrementalCounter[incrementalCounters.size()]);
+		this.instantaneousCounters
+				= instantaneousCounters.toArray(new InstantaneousCounter[instantaneousCounters.size()]);
+		this.measureCounters = measureCounters.toArray(new MeasureCounter[measureCounters.size()]);
+		this.histogramCounters = histogramCounters.toArray(new HistogramCounter[histogramCounters.size()]);
+		this.hiResCounters = hiResCounters.toArray(new HiResCounter<?>[hiResCounters.size()]);
+		
+		SampleMetadata md = new SampleMetadata();
+		md.incrementalCounterNames = new String[this.incrementalCounters.length];
+		for (int i = 0; i < this.incrementalCounters.length; i++) {
+			md.incrementalCounterNames[i] = this.incrementalCounters[i].name;
+		}
+		md.instantaneousCounterNames = new String[this.instantaneousCounters.length];
+		for (int i = 0; i < this.instantaneousCounters.length; i++) {
+			md.instantaneousCounterNames[i] = this.instantaneousCounters[i].name;
+		}
+		md.measureCounterNames = new String[this.measureCounters.length];
+		for (int i = 0; i < this.measureCounters.length; i++) {
+			md.measureCounterNames[i] = this.measureCounters[i].name;
+		}
+		md.histogramCounterNames = new String[this.histogramCounters.length];
+		for (int i = 0; i < this.histogramCounters.length; i++) {
+			md.histogramCounterNames[i] = this.histogramCounters[i].name;
+		}
+		md.hiResCounterNames = new String[this.hiResCounters.length];
+		md.hiResCounterStates = new String[this.hiResCounters.length][];
+		md.hiResCounterExact = new boolean[this.hiResCounters.length];
+		md.hiResCounterPerThread = new boolean[this.hiResCounters.length];
+		for (int i = 0; i < this.hiResCounters.length; i++) {
+			md.hiResCounterNames[i] = this.hiResCounters[i].name;
+			md.hiResCounterExact[i] = this.hiResCounters[i].exact;
+			md.hiResCounterPerThread[i] = this.hiResCounters[i].perThread;
+			md.hiResCounterStates[i] = new String[this.hiResCounters[i].values.length];
+			for (int j = 0; j < md.hiResCounterStates[i].length; j++) {
+				md.hiResCounterStates[i][j] = this.hiResCounters[i].values[j].toString();
+			}
+		}
+		metadata = md;
+		
+		boolean[] incrementalStriped = new boolean[this.incrementalCounters.length];
+		String[] incrementalGroups = new String[this.incrementalCounters.length];
+		for (int i = 0; i < this.incrementalCounters.length; i++) {
+			incrementalStriped[i] = this.incrementalCounters[i].striped;
+			incrementalGroups[i] = this.incrementalCounters[i].group;
+		}
+		incrementalLayout = new CellLayout(incrementalStriped, incrementalGroups, padded);
+		String[] instantaneousGroups = new String[this.instantaneousCounters.length];
+		for (int i = 0; i < this.instantaneousCounters.length; i++) {
+			instantaneousGroups[i] = this.instantaneousCounters[i].group;
+		}
+		instantaneousLayout = new CellLayout(new boolean[this.instantaneousCounters.length], instantaneousGroups, padded);
+		boolean[] measureStriped = new boolean[this.measureCounters.length];
+		String[] measureGroups = new String[this.measureCounters.length];
+		for (int i = 0; i < this.measureCounters.length; i++) {
+			measureStriped[i] = this.measureCounters[i].striped;
+			measureGroups[i] = this.measureCounters[i].group;
+		}
+		measureLayout = new CellLayout(measureStriped, measureGroups, padded);
+		md.measureCounterMinMax = new boolean[this.measureCounters.length];
+		boolean minMax = false;
+		for (int i = 0; i < this.measureCounters.length; i++) {
+			md.measureCounterMinMax[i] = this.measureCounters[i].minMax;
+			minMax |= this.measureCounters[i].minMax;
+		}
+		if (minMax) {
+			minMaxLayout = new CellLayout(new boolean[this.measureCounters.length], measureGroups, padded);
+		}
+		
+		this.singleWriter = singleWriter;
+		if (singleWriter) {
+			// Without concurrent writers, cumulative values updated with ordered stores
+			// are enough, so all counters go through the relaxed path
+			for (IncrementalCounter c: this.incrementalCounters) {
+				c.relaxed = true;
+			}
+			for (InstantaneousCounter c: this.instantaneousCounters) {
+				c.relaxed = true;
+			}
+			for (MeasureCounter c: this.measureCounters) {
+				c.relaxed = true;
+			}
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/** thrown when the update methods of a counter of a template are called */
+	static IllegalStateException counterOfTemplate(String counter) {
+		return new IllegalStateException("Counter " + counter + " belongs to a template:"
+				+ " update it through a CounterData, as in cd.inc(counter), or a Setter");
+	}
+	
+	/** creates and registers an instance, like CounterDataBuilder.create() */
+	public CounterData createInstance(String instance) {
+		CounterData cd = new CounterData(name, instance);
+		cd.init(this);
+		counterMgr.registerCounterData(cd);
+		return cd;
+	}
+}
@@ -0,0 +1,35 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Memory fences around plain accesses, for the sequence locks of the
+ * exported counters, see {@link PerfDataWriter}, and of the history ring,
+ * see {@link ColumnarHistory}.
+ *
+ * This is the implementation for Java 7 and 8, which have no public fences:
+ * a volatile write followed by a volatile read of the same field, which
+ * neither the JIT nor the CPU reorder with the accesses around them. On
+ * Java 9 and later, the version in src/main/java9 uses VarHandle fences.
+ */
+final class Fences {
+
+	private static volatile int fence;
+
+	private Fences() {
+	}
+
+	/** loads and stores before the fence are ordered before stores after it */
+	static void releaseFence() {
+		fullFence();
+	}
+
+	/** loads before the fence are ordered before loads and stores after it */
+	static void acquireFence() {
+		fullFence();
+	}
+
+	private static int fullFence() {
+		// earlier accesses cannot move after the write, later ones before the read
+		fence = 0;
+		return fence;
+	}
+}
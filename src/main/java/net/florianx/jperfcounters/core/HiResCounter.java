@@ -1,25 +1,45 @@
 package net.florianx.jperfcounters.core;
 
-
+import java.util.EnumSet;
 
 public class HiResCounter<E extends Enum<?>> {
 	CounterData cd;
 	String name;
 	int index;
 	Enum<?>[] values;
+	boolean exact;
+	boolean perThread;
 	
-	HiResCounter(CounterData cd, String name, E[] values, int index) {
+	HiResCounter(CounterData cd, String name, E[] values, int index, EnumSet<CounterOption> options) {
 		this.cd = cd;
 		this.name = name;
 		this.index = index;
 		this.values = values;
+		this.exact = options.contains(CounterOption.EXACT);
+		this.perThread = options.contains(CounterOption.PER_THREAD);
 	}
 
 	public int getStateCount() {
 		return values.length;
 	}
 	
+	/** not for PER_THREAD counters, see register() */
 	public void setState(E state) {
-		cd.setState(this, state);
+		owner().setState(this, state);
+	}
+	
+	/**
+	 * For PER_THREAD counters: gives the calling thread a state of its own,
+	 * starting with initialState, to set through the returned handle.
+	 */
+	public HiResThreadState<E> register(E initialState) {
+		return owner().register(this, initialState);
+	}
+	
+	private CounterData owner() {
+		if (cd == null) {
+			throw CounterTemplate.counterOfTemplate(name);
+		}
+		return cd;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,40 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State of one thread for a PER_THREAD hi-res counter, see
+ * {@link HiResCounter#register(Enum)}
+ * or {@link CounterData#register(HiResCounter, Enum)}. The thread keeps it and sets its
+ * state through it, without any lookup; close() gives the slot back when
+ * the thread is done, for example at the end of a (virtual) thread's task.
+ *
+ * Only the registering thread should set states through a handle.
+ */
+public final class HiResThreadState<E extends Enum<?>> implements AutoCloseable {
+	private final CounterData cd;
+	private final HiResCounter<E> counter;
+	private final int slot;
+	private final AtomicLongArray chunk;
+	private final int position;
+	private boolean closed;
+
+	HiResThreadState(CounterData cd, HiResCounter<E> counter, int slot, AtomicLongArray chunk) {
+		this.cd = cd;
+		this.counter = counter;
+		this.slot = slot;
+		this.chunk = chunk;
+		this.position = ThreadStates.position(slot);
+	}
+
+	public void setState(E state) {
+		cd.setThreadState(counter, chunk, position, state.ordinal());
+	}
+
+	public void close() {
+		if (!closed) {
+			closed = true;
+			cd.releaseThreadState(counter, slot, chunk, position);
+		}
+	}
+}
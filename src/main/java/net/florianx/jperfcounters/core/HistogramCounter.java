@@ -1,31 +1,88 @@
 package net.florianx.jperfcounters.core;
 
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
 import org.HdrHistogram.AtomicHistogram;
+import org.HdrHistogram.ConcurrentHistogram;
 import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedConcurrentHistogram;
+import org.HdrHistogram.PackedHistogram;
 
-public class HistogramCounter {
+public class HistogramCounter implements TimedCounter {
 	CounterData cd;
 	String name;
 	int index;
+	long lowestDiscernibleValue;
+	long highestTrackableValue;
+	int numberOfSignificantValueDigits;
+	boolean autoResize;
+	boolean striped;
+	boolean packed;
+	TimeUnit timeUnit; // of durations recorded with stop
 	
-	HistogramCounter(CounterData cd, String name, int index) {
+	HistogramCounter(CounterData cd, String name, int index,
+			long lowestDiscernibleValue, long highestTrackableValue, int numberOfSignificantValueDigits,
+			EnumSet<CounterOption> options) {
 		this.cd = cd;
 		this.name = name;
 		this.index = index;
+		this.lowestDiscernibleValue = lowestDiscernibleValue;
+		this.highestTrackableValue = highestTrackableValue;
+		this.numberOfSignificantValueDigits = numberOfSignificantValueDigits;
+		this.autoResize = options.contains(CounterOption.AUTO_RESIZE);
+		this.striped = options.contains(CounterOption.STRIPED);
+		this.packed = options.contains(CounterOption.PACKED);
 	}
 
-	Histogram createHistogram() {
-		return new AtomicHistogram(10, 1000 * 60, 2); // from 10ms to 1 minute, 2 significant digits
+	/**
+	 * Histogram to record values in. With a single writer, the phaser is enough
+	 * to make its values visible to the sampler (as in HdrHistogram's
+	 * SingleWriterRecorder), otherwise buckets are updated atomically.
+	 */
+	Histogram createHistogram(boolean singleWriter) {
+		Histogram h;
+		if (packed) {
+			h = singleWriter
+					? new PackedHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits)
+					: new PackedConcurrentHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+		} else if (singleWriter) {
+			h = new Histogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+		} else if (autoResize) {
+			h = new ConcurrentHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+		} else {
+			h = new AtomicHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+		}
+		if (autoResize) { // AtomicHistogram rejects any call
+			h.setAutoResize(true);
+		}
+		return h;
 	}
 	
 	public void recordValue(long value) {
-		long w = cd.startUpdate();
-		cd.recordValue(this, value);
-		cd.endUpdate(w);
+		owner().recordValue(this, value);
 	}
 	public void recordValueWithCount(long value, long count) {
-		long w = cd.startUpdate();
-		cd.recordValueWithCount(this, value, count);
-		cd.endUpdate(w);
+		owner().recordValueWithCount(this, value, count);
+	}
+	
+	public long start() {
+		owner(); // counters of a template fail here, not after the timed work
+		return System.nanoTime();
+	}
+	public long stop(long start) {
+		long elapsed = timeUnit.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		owner().recordValue(this, elapsed);
+		return elapsed;
+	}
+	public Stopwatch time() {
+		return Stopwatch.start(this);
+	}
+	
+	private CounterData owner() {
+		if (cd == null) {
+			throw CounterTemplate.counterOfTemplate(name);
+		}
+		return cd;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Columns of the history of a CounterData, see ColumnarHistory: one per
+ * value a sample has for each counter. Rollups also keep the lowest and
+ * highest value of instantaneous counters. Computed once per SampleMetadata.
+ */
+final class HistoryLayout {
+
+	// columns of an incremental counter, from its first one
+	static final int INC_VALUE = 0;
+	static final int INC_CUMULATIVE = 1;
+	// of an instantaneous counter, the last 2 only in rollups
+	static final int INST_VALUE = 0;
+	static final int INST_DELTA = 1;
+	static final int INST_MIN = 2;
+	static final int INST_MAX = 3;
+	// of a measure counter, the last 3 only with MIN_MAX
+	static final int MEASURE_COUNT = 0;
+	static final int MEASURE_VALUE = 1;
+	static final int MEASURE_COUNT_CUMULATIVE = 2;
+	static final int MEASURE_VALUE_CUMULATIVE = 3;
+	static final int MEASURE_MIN = 4;
+	static final int MEASURE_MAX = 5;
+	static final int MEASURE_LAST = 6;
+
+	final int[] incremental; // first column of each counter
+	final int[] instantaneous;
+	final int[] measure;
+	final int[] hiRes; // one column per state
+	final int hiResTicks; // then the duration of the sample, -1 without hi-res counters
+	final int histograms; // number of histogram counters, stored apart
+	final int width;
+	final boolean rollup;
+
+	HistoryLayout(SampleMetadata md, boolean rollup) {
+		this.rollup = rollup;
+		int c = 0;
+		incremental = new int[md.incrementalCounterNames.length];
+		for (int i = 0; i < incremental.length; i++) {
+			incremental[i] = c;
+			c += 2;
+		}
+		instantaneous = new int[md.instantaneousCounterNames.length];
+		for (int i = 0; i < instantaneous.length; i++) {
+			instantaneous[i] = c;
+			c += rollup ? 4 : 2;
+		}
+		measure = new int[md.measureCounterNames.length];
+		for (int i = 0; i < measure.length; i++) {
+			measure[i] = c;
+			c += md.measureCounterMinMax[i] ? 7 : 4;
+		}
+		hiRes = new int[md.hiResCounterNames.length];
+		for (int i = 0; i < hiRes.length; i++) {
+			hiRes[i] = c;
+			c += md.hiResCounterStates[i].length;
+		}
+		if (hiRes.length > 0) {
+			hiResTicks = c;
+			c += 2;
+		} else {
+			hiResTicks = -1;
+		}
+		histograms = md.histogramCounterNames.length;
+		width = c;
+	}
+
+	/** layout of the samples of md */
+	static HistoryLayout of(SampleMetadata md) {
+		HistoryLayout layout = md.historyLayout;
+		if (layout == null) {
+			// racy, but all threads compute the same immutable layout
+			layout = new HistoryLayout(md, false);
+			md.historyLayout = layout;
+		}
+		return layout;
+	}
+
+	/** layout of the rollups of the samples of md */
+	static HistoryLayout rollupOf(SampleMetadata md) {
+		HistoryLayout layout = md.rollupLayout;
+		if (layout == null) {
+			layout = new HistoryLayout(md, true);
+			md.rollupLayout = layout;
+		}
+		return layout;
+	}
+}
@@ -1,24 +1,34 @@
 package net.florianx.jperfcounters.core;
 
+import java.util.EnumSet;
+
 public class IncrementalCounter {
 	CounterData cd;
 	String name;
 	int index;
+	String group; // affinity group, null for the default one
+	boolean striped;
+	boolean relaxed;
 	
-	IncrementalCounter(CounterData cd, String name, int index) {
+	IncrementalCounter(CounterData cd, String name, int index, EnumSet<CounterOption> options) {
 		this.cd = cd;
 		this.name = name;
 		this.index = index;
+		this.striped = options.contains(CounterOption.STRIPED);
+		this.relaxed = options.contains(CounterOption.RELAXED);
 	}
 	
 	public void inc() {
-		long w = cd.startUpdate();
-		cd.inc(this);
-		cd.endUpdate(w);
+		owner().inc(this);
 	}
 	public void add(long value) {
-		long w = cd.startUpdate();
-		cd.add(this, value);
-		cd.endUpdate(w);
+		owner().add(this, value);
+	}
+	
+	private CounterData owner() {
+		if (cd == null) {
+			throw CounterTemplate.counterOfTemplate(name);
+		}
+		return cd;
 	}
-}
\ No newline at end of file
+}
@@ -1,33 +1,38 @@
 package net.florianx.jperfcounters.core;
 
+import java.util.EnumSet;
+
 public class InstantaneousCounter {
 	CounterData cd;
 	String name;
 	int index;
+	String group; // affinity group, null for the default one
+	boolean relaxed;
 	
-	InstantaneousCounter(CounterData cd, String name, int index) {
+	InstantaneousCounter(CounterData cd, String name, int index, EnumSet<CounterOption> options) {
 		this.cd = cd;
 		this.name = name;
 		this.index = index;
+		this.relaxed = options.contains(CounterOption.RELAXED);
 	}
 	
 	public void inc() {
-		long w = cd.startUpdate();
-		cd.inc(this);
-		cd.endUpdate(w);
+		owner().inc(this);
 	}
 	public void dec() {
-		long w = cd.startUpdate();
-		cd.dec(this);
-		cd.endUpdate(w);
+		owner().dec(this);
 	}
 	public void add(long value) {
-		long w = cd.startUpdate();
-		cd.add(this, value);
-		cd.endUpdate(w);
+		owner().add(this, value);
 	}
 	public void set(long value) {
-		// no need for startUpdate(), endUpdate() here
-		cd.set(this, value);
+		owner().set(this, value);
+	}
+	
+	private CounterData owner() {
+		if (cd == null) {
+			throw CounterTemplate.counterOfTemplate(name);
+		}
+		return cd;
 	}
-}
\ No newline at end of file
+}
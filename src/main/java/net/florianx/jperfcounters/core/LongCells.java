@@ -0,0 +1,70 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Array of longs with the access modes needed by {@link CounterCells}.
+ *
+ * This is the implementation for Java 7 and 8, on AtomicLongArray. The jar
+ * is multi-release: on Java 9 and later, the version in src/main/java9 is
+ * used instead, on a plain long[] with VarHandle access modes.
+ */
+final class LongCells {
+
+	private final AtomicLongArray cells;
+
+	LongCells(int size) {
+		cells = new AtomicLongArray(size);
+	}
+
+	int length() {
+		return cells.length();
+	}
+
+	/** reads with (at least) acquire semantics */
+	long get(int i) {
+		return cells.get(i);
+	}
+
+	/** atomic add, with (at least) release semantics */
+	void add(int i, long delta) {
+		cells.addAndGet(i, delta);
+	}
+
+	/** add by the only thread writing the cell, with release semantics */
+	void addOrdered(int i, long delta) {
+		cells.lazySet(i, cells.get(i) + delta);
+	}
+
+	void set(int i, long value) {
+		cells.set(i, value);
+	}
+
+	/** store with release semantics */
+	void setOrdered(int i, long value) {
+		cells.lazySet(i, value);
+	}
+
+	long getAndSet(int i, long value) {
+		return cells.getAndSet(i, value);
+	}
+
+	boolean compareAndSet(int i, long expect, long update) {
+		return cells.compareAndSet(i, expect, update);
+	}
+
+	/**
+	 * Sets all cells to zero. Writers must only see the result through a
+	 * later volatile write, such as the swap of CounterData.current.
+	 */
+	void clear() {
+		fill(0);
+	}
+
+	/** sets all cells to value, same visibility as clear() */
+	void fill(long value) {
+		for (int i = 0; i < cells.length(); i++) {
+			cells.lazySet(i, value);
+		}
+	}
+}
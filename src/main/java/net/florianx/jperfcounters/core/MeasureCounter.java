@@ -1,24 +1,51 @@
 package net.florianx.jperfcounters.core;
 
-public class MeasureCounter {
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+public class MeasureCounter implements TimedCounter {
 	CounterData cd;
 	String name;
 	int index;
+	String group; // affinity group, null for the default one
+	boolean striped;
+	boolean relaxed;
+	boolean minMax;
+	TimeUnit timeUnit; // of durations recorded with stop
 	
-	MeasureCounter(CounterData cd, String name, int index) {
+	MeasureCounter(CounterData cd, String name, int index, EnumSet<CounterOption> options) {
 		this.cd = cd;
 		this.name = name;
 		this.index = index;
+		this.striped = options.contains(CounterOption.STRIPED);
+		this.relaxed = options.contains(CounterOption.RELAXED);
+		this.minMax = options.contains(CounterOption.MIN_MAX);
 	}
 	
 	public void recordValue(long value) {
-		long w = cd.startUpdate();
-		cd.recordValue(this, value);
-		cd.endUpdate(w);
+		owner().recordValue(this, value);
 	}
 	public void recordValueWithCount(long value, long count) {
-		long w = cd.startUpdate();
-		cd.recordValueWithCount(this, value, count);
-		cd.endUpdate(w);
+		owner().recordValueWithCount(this, value, count);
+	}
+	
+	public long start() {
+		owner(); // counters of a template fail here, not after the timed work
+		return System.nanoTime();
+	}
+	public long stop(long start) {
+		long elapsed = timeUnit.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		owner().recordValue(this, elapsed);
+		return elapsed;
+	}
+	public Stopwatch time() {
+		return Stopwatch.start(this);
+	}
+	
+	private CounterData owner() {
+		if (cd == null) {
+			throw CounterTemplate.counterOfTemplate(name);
+		}
+		return cd;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Minimum, maximum and last value recorded by measure counters, for the
+ * counters created with {@link CounterOption#MIN_MAX}. Updates are lock-free:
+ * the extremes are CAS loops that give up as soon as the value cannot
+ * improve them, which is the common case once a slot has seen a few values.
+ */
+final class MinMaxCells {
+
+	private final CounterCells min;
+	private final CounterCells max;
+	private final CounterCells last;
+
+	MinMaxCells(CellLayout layout) {
+		min = new CounterCells(layout);
+		max = new CounterCells(layout);
+		last = new CounterCells(layout);
+		reset();
+	}
+
+	void record(int index, long value) {
+		record(index, value, value, value);
+	}
+
+	/** records a batch of values, with its extremes and the last value of the batch */
+	void record(int index, long minValue, long maxValue, long lastValue) {
+		min.min(index, minValue);
+		max.max(index, maxValue);
+		last.set(index, lastValue);
+	}
+
+	/** true if a value was recorded for counter index since the last reset */
+	boolean hasValue(int index) {
+		return min.get(index) <= max.get(index);
+	}
+
+	long getMin(int index) {
+		return min.get(index);
+	}
+
+	long getMax(int index) {
+		return max.get(index);
+	}
+
+	long getLast(int index) {
+		return last.get(index);
+	}
+
+	void reset() {
+		min.reset(Long.MAX_VALUE);
+		max.reset(Long.MIN_VALUE);
+		last.reset();
+	}
+}
@@ -0,0 +1,210 @@
+package net.florianx.jperfcounters.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads counters exported by a CounterMgr with {@link CounterMgr#exportTo(File, int)},
+ * possibly from another process. The file is mapped, and values are read
+ * from it directly each time an entry is read. See PerfDataWriter for the layout.
+ */
+public class PerfDataReader implements Closeable {
+
+	/** how long Entry.read() retries while the values are being written */
+	public static final long READ_TIMEOUT_MILLIS = 1000;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+
+	public PerfDataReader(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		if (buffer.getInt(0) != PerfDataWriter.MAGIC && Integer.reverseBytes(buffer.getInt(0)) != PerfDataWriter.MAGIC) {
+			file.close();
+			throw new IOException("Not a counters file: " + f);
+		}
+		buffer.order(buffer.get(4) == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		if (buffer.get(5) != PerfDataWriter.VERSION) {
+			file.close();
+			throw new IOException("Unsupported version " + buffer.get(5) + ": " + f);
+		}
+	}
+
+	/** true if some CounterData could not be exported because the file is full */
+	public boolean isOverflow() {
+		return (buffer.getInt(PerfDataWriter.FLAGS_OFFSET) & PerfDataWriter.FLAG_OVERFLOW) != 0;
+	}
+
+	public long getLastUpdateMillis() {
+		return buffer.getLong(PerfDataWriter.LAST_UPDATE_OFFSET);
+	}
+
+	/** entries currently in the file; new ones appear as CounterData are sampled for the first time */
+	public List<Entry> getEntries() {
+		List<Entry> list = new ArrayList<>();
+		int used = buffer.getInt(PerfDataWriter.USED_OFFSET);
+		Fences.acquireFence(); // entries up to used are written before it
+		int pos = PerfDataWriter.HEADER_SIZE;
+		while (pos < used) {
+			Entry e = new Entry(pos);
+			list.add(e);
+			pos += buffer.getInt(pos);
+		}
+		return list;
+	}
+
+	public class Entry {
+		private int offset;
+		private int valuesOffset;
+		private String name;
+		private String instance;
+		private SampleMetadata metadata;
+
+		private Entry(int offset) {
+			this.offset = offset;
+			valuesOffset = offset + buffer.getInt(offset + 4);
+			int[] pos = new int[] { offset + PerfDataWriter.ENTRY_DESCRIPTION_OFFSET };
+			name = getString(pos);
+			instance = getString(pos);
+			metadata = new SampleMetadata();
+			metadata.incrementalCounterNames = getStrings(pos);
+			metadata.instantaneousCounterNames = getStrings(pos);
+			metadata.measureCounterNames = getStrings(pos);
+			int hiResCount = getInt(pos);
+			metadata.hiResCounterNames = new String[hiResCount];
+			metadata.hiResCounterStates = new String[hiResCount][];
+			for (int i = 0; i < hiResCount; i++) {
+				metadata.hiResCounterNames[i] = getString(pos);
+				metadata.hiResCounterStates[i] = getStrings(pos);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+		public String getInstance() {
+			return instance;
+		}
+		public String[] getIncrementalCounterNames() {
+			return metadata.incrementalCounterNames.clone();
+		}
+		public String[] getInstantaneousCounterNames() {
+			return metadata.instantaneousCounterNames.clone();
+		}
+		public String[] getMeasureCounterNames() {
+			return metadata.measureCounterNames.clone();
+		}
+		public String[] getHiResCounterNames() {
+			return metadata.hiResCounterNames.clone();
+		}
+		public String[] getHiResCounterStates(int hiResCounter) {
+			return metadata.hiResCounterStates[hiResCounter].clone();
+		}
+
+		/** read(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) */
+		public Values read() {
+			return read(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Reads a consistent copy of the current values, retrying while they
+		 * are being written. Returns null if they could not be read within
+		 * the timeout, as when the exporting process died while writing them.
+		 */
+		public Values read(long timeout, TimeUnit unit) {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			Values v = new Values();
+			v.incrementalCountersCumulative = new long[metadata.incrementalCounterNames.length];
+			v.instantaneousCountersValue = new long[metadata.instantaneousCounterNames.length];
+			v.measureCountersCountsCumulative = new long[metadata.measureCounterNames.length];
+			v.measureCountersValuesCumulative = new long[metadata.measureCounterNames.length];
+			v.hiResSlots = new long[metadata.hiResCounterNames.length][];
+			for (int i = 0; i < v.hiResSlots.length; i++) {
+				v.hiResSlots[i] = new long[metadata.hiResCounterStates[i].length];
+			}
+			for (int tries = 0; ; tries++) {
+				if (tries > 0) {
+					if (System.nanoTime() - deadline > 0) {
+						return null;
+					}
+					Thread.yield();
+				}
+				long seq = buffer.getLong(offset + PerfDataWriter.ENTRY_SEQUENCE_OFFSET);
+				if ((seq & 1) != 0) {
+					continue;
+				}
+				Fences.acquireFence(); // values are read after the sequence
+				v.slot = buffer.getLong(offset + PerfDataWriter.ENTRY_SLOT_OFFSET);
+				v.timestamp = buffer.getLong(offset + PerfDataWriter.ENTRY_TIMESTAMP_OFFSET);
+				int pos = valuesOffset;
+				pos = getLongs(pos, v.incrementalCountersCumulative);
+				pos = getLongs(pos, v.instantaneousCountersValue);
+				pos = getLongs(pos, v.measureCountersCountsCumulative);
+				pos = getLongs(pos, v.measureCountersValuesCumulative);
+				for (long[] states: v.hiResSlots) {
+					pos = getLongs(pos, states);
+				}
+				Fences.acquireFence(); // and before it is read again
+				if (buffer.getLong(offset + PerfDataWriter.ENTRY_SEQUENCE_OFFSET) == seq) {
+					return v;
+				}
+			}
+		}
+	}
+
+	/** values of an entry, in the order of the counter names */
+	public static class Values {
+		public long slot;
+		public long timestamp;
+		public long[] incrementalCountersCumulative;
+		public long[] instantaneousCountersValue;
+		public long[] measureCountersCountsCumulative;
+		public long[] measureCountersValuesCumulative;
+		public long[][] hiResSlots;
+	}
+
+	private int getLongs(int pos, long[] values) {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = buffer.getLong(pos);
+			pos += 8;
+		}
+		return pos;
+	}
+
+	private int getInt(int[] pos) {
+		int v = buffer.getInt(pos[0]);
+		pos[0] += 4;
+		return v;
+	}
+
+	private String getString(int[] pos) {
+		int len = buffer.getShort(pos[0]) & 0xFFFF;
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = buffer.get(pos[0] + 2 + i);
+		}
+		pos[0] += 2 + len;
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private String[] getStrings(int[] pos) {
+		String[] s = new String[getInt(pos)];
+		for (int i = 0; i < s.length; i++) {
+			s[i] = getString(pos);
+		}
+		return s;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,227 @@
+package net.florianx.jperfcounters.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Exports the values of all CounterData in a memory-mapped file, in the
+ * spirit of hsperfdata: another process can map the file and read the
+ * counters without going through the Reporter, see {@link PerfDataReader}.
+ *
+ * Each CounterData gets an entry the first time it is sampled, with a
+ * description built from its SampleMetadata, followed by the values of
+ * its last sample (cumulative values for incremental and measure counters,
+ * current value for instantaneous counters, state counts of the slot for
+ * hi-res counters). Values are rewritten at each sample, between two
+ * increments of the entry sequence number: readers retry while it is odd
+ * or when it changed during their read.
+ *
+ * Entries are never removed: a CounterData unregistered keeps its entry,
+ * which it reuses if it is registered again under the same name and
+ * instance with the same counters. With other counters, it gets a new
+ * entry, and the old one keeps its last values. Once the file is full, new
+ * CounterData are not exported and FLAG_OVERFLOW is set.
+ *
+ * File layout, in the byte order given in the header:
+ * <pre>
+ * header (HEADER_SIZE bytes)
+ *   int magic, byte byteOrder (1: little endian), byte version, short reserved
+ *   int capacity, int used (end of the last complete entry), int entryCount, int flags
+ *   long lastUpdateMillis
+ * entries, one after the other from HEADER_SIZE to used
+ *   int length, int valuesOffset (from the start of the entry)
+ *   long sequence, long slot, long timestamp
+ *   string name, string instance
+ *   int count, then count strings, for incremental, instantaneous and measure counter names
+ *   int count, then for each hi-res counter: string name, int states, states strings
+ *   padding to 8 bytes
+ *   long values: incremental cumulative, instantaneous values, measure counts cumulative,
+ *   measure values cumulative, hi-res states counts
+ * strings are a short length followed by UTF-8 bytes
+ * </pre>
+ */
+class PerfDataWriter {
+
+	static final int MAGIC = 0x4A504344; // "JPCD"
+	static final byte VERSION = 1;
+	static final int HEADER_SIZE = 64;
+
+	static final int CAPACITY_OFFSET = 8;
+	static final int USED_OFFSET = 12;
+	static final int ENTRY_COUNT_OFFSET = 16;
+	static final int FLAGS_OFFSET = 20;
+	static final int LAST_UPDATE_OFFSET = 24;
+
+	static final int ENTRY_SEQUENCE_OFFSET = 8;
+	static final int ENTRY_SLOT_OFFSET = 16;
+	static final int ENTRY_TIMESTAMP_OFFSET = 24;
+	static final int ENTRY_DESCRIPTION_OFFSET = 32;
+
+	static final int FLAG_OVERFLOW = 1;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	// offset of the entry of each name:instance, and the metadata it describes
+	private HashMap<String, Integer> entries;
+	private HashMap<String, SampleMetadata> descriptions;
+	private int used;
+	private int entryCount;
+
+	PerfDataWriter(File f, int capacity) throws IOException {
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0); // do not let readers see a previous run
+		file.setLength(capacity);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		buffer.order(ByteOrder.nativeOrder());
+		entries = new HashMap<>();
+		descriptions = new HashMap<>();
+		used = HEADER_SIZE;
+
+		buffer.putInt(0, MAGIC);
+		buffer.put(4, (byte)(buffer.order() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+		buffer.put(5, VERSION);
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.putInt(USED_OFFSET, used);
+	}
+
+	synchronized void write(String name, String instance, long slot, long timestamp, SampleData sample) {
+		String key = name + ":" + instance;
+		Integer entry = entries.get(key);
+		if (entry != null && !sameDescription(descriptions.get(key), sample.metadata)) {
+			// another CounterData registered under the same name and instance, with other
+			// counters: its values would not fit in the entry
+			entry = null;
+		}
+		if (entry == null) {
+			entry = addEntry(name, instance, sample.metadata);
+			if (entry < 0) {
+				return;
+			}
+		}
+		int e = entry;
+		int pos = e + buffer.getInt(e + 4);
+		long seq = buffer.getLong(e + ENTRY_SEQUENCE_OFFSET);
+		buffer.putLong(e + ENTRY_SEQUENCE_OFFSET, seq + 1); // odd: being written
+		Fences.releaseFence(); // values are not visible before the odd sequence
+		buffer.putLong(e + ENTRY_SLOT_OFFSET, slot);
+		buffer.putLong(e + ENTRY_TIMESTAMP_OFFSET, timestamp);
+		pos = putLongs(pos, sample.incrementalCountersCumulative);
+		pos = putLongs(pos, sample.instantaneousCountersValue);
+		pos = putLongs(pos, sample.measureCountersCountsCumulative);
+		pos = putLongs(pos, sample.measureCountersValuesCumulative);
+		for (long[] states: sample.hiResSlots) {
+			pos = putLongs(pos, states);
+		}
+		Fences.releaseFence(); // nor after the even one
+		buffer.putLong(e + ENTRY_SEQUENCE_OFFSET, seq + 2);
+		buffer.putLong(LAST_UPDATE_OFFSET, timestamp);
+	}
+
+	private int putLongs(int pos, long[] values) {
+		for (long v: values) {
+			buffer.putLong(pos, v);
+			pos += 8;
+		}
+		return pos;
+	}
+
+	/** returns the offset of the new entry, -1 if the file is full */
+	private int addEntry(String name, String instance, SampleMetadata md) {
+		int valueCount = md.incrementalCounterNames.length + md.instantaneousCounterNames.length
+				+ 2 * md.measureCounterNames.length;
+		int size = ENTRY_DESCRIPTION_OFFSET + stringSize(name) + stringSize(instance)
+				+ stringsSize(md.incrementalCounterNames)
+				+ stringsSize(md.instantaneousCounterNames)
+				+ stringsSize(md.measureCounterNames)
+				+ 4;
+		for (int i = 0; i < md.hiResCounterNames.length; i++) {
+			size += stringSize(md.hiResCounterNames[i]) + stringsSize(md.hiResCounterStates[i]);
+			valueCount += md.hiResCounterStates[i].length;
+		}
+		int valuesOffset = (size + 7) & ~7;
+		size = valuesOffset + valueCount * 8;
+		if (used + size > buffer.capacity()) {
+			buffer.putInt(FLAGS_OFFSET, buffer.getInt(FLAGS_OFFSET) | FLAG_OVERFLOW);
+			return -1;
+		}
+
+		int e = used;
+		buffer.putInt(e, size);
+		buffer.putInt(e + 4, valuesOffset);
+		int pos = e + ENTRY_DESCRIPTION_OFFSET;
+		pos = putString(pos, name);
+		pos = putString(pos, instance);
+		pos = putStrings(pos, md.incrementalCounterNames);
+		pos = putStrings(pos, md.instantaneousCounterNames);
+		pos = putStrings(pos, md.measureCounterNames);
+		buffer.putInt(pos, md.hiResCounterNames.length);
+		pos += 4;
+		for (int i = 0; i < md.hiResCounterNames.length; i++) {
+			pos = putString(pos, md.hiResCounterNames[i]);
+			pos = putStrings(pos, md.hiResCounterStates[i]);
+		}
+
+		// publish the entry
+		used += size;
+		++entryCount;
+		Fences.releaseFence(); // the entry is written before readers see it in used
+		buffer.putInt(ENTRY_COUNT_OFFSET, entryCount);
+		buffer.putInt(USED_OFFSET, used);
+		entries.put(name + ":" + instance, e);
+		descriptions.put(name + ":" + instance, md);
+		return e;
+	}
+
+	/** true if the entry of a describes the values of b */
+	private static boolean sameDescription(SampleMetadata a, SampleMetadata b) {
+		return a == b
+				|| Arrays.equals(a.incrementalCounterNames, b.incrementalCounterNames)
+				&& Arrays.equals(a.instantaneousCounterNames, b.instantaneousCounterNames)
+				&& Arrays.equals(a.measureCounterNames, b.measureCounterNames)
+				&& Arrays.equals(a.hiResCounterNames, b.hiResCounterNames)
+				&& Arrays.deepEquals(a.hiResCounterStates, b.hiResCounterStates);
+	}
+
+	private static int stringSize(String s) {
+		return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static int stringsSize(String[] strings) {
+		int size = 4;
+		for (String s: strings) {
+			size += stringSize(s);
+		}
+		return size;
+	}
+
+	private int putString(int pos, String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort(pos, (short)b.length);
+		pos += 2;
+		for (int i = 0; i < b.length; i++) {
+			buffer.put(pos++, b[i]);
+		}
+		return pos;
+	}
+
+	private int putStrings(int pos, String[] strings) {
+		buffer.putInt(pos, strings.length);
+		pos += 4;
+		for (String s: strings) {
+			pos = putString(pos, s);
+		}
+		return pos;
+	}
+
+	synchronized void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+}
@@ -7,5 +7,5 @@ public interface PerfSampleable {
 		Histo
 	}
 	public void sampleHiRes();
-	public void sample(SampleType sampleType, SampleCollector sampleCollector);
+	public void sample(SampleType sampleType, SampleSink sink);
 }
@@ -1,5 +1,12 @@
 package net.florianx.jperfcounters.core;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
 public class Reporter {
 
 	private SampleCollector sampleCollector;
@@ -16,4 +23,28 @@ public class Reporter {
 		return sampleCollector.toJson(lastSlot, entries);
 	}
 	
+	/**
+	 * Values over entries slots up to lastSlot, from the coarsest rollup
+	 * tier that still gives at least the given number of points, see
+	 * CounterMgr.addRollup().
+	 */
+	public String getAsJson(long lastSlot, int entries, int points) {
+		return sampleCollector.toJson(lastSlot, entries, points);
+	}
+	
+	/**
+	 * Writes the JSON of getAsJson(lastSlot, entries, points) to out as it
+	 * reads the history, without building it as a String first.
+	 */
+	public void writeJson(long lastSlot, int entries, int points, Writer out) throws IOException {
+		sampleCollector.writeJson(lastSlot, entries, points, out);
+	}
+	
+	/** Writes the JSON in UTF-8, flushes out but does not close it */
+	public void writeJson(long lastSlot, int entries, int points, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")), 8192);
+		sampleCollector.writeJson(lastSlot, entries, points, writer);
+		writer.flush();
+	}
+	
 }
@@ -1,60 +1,150 @@
 package net.florianx.jperfcounters.core;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonNull;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 
-public class SampleCollector {
+import com.google.gson.stream.JsonWriter;
 
-	static class SlotData {
-		long slot;
-		long timestamp;
-		HashMap<String, HashMap<String, SampleData>> entry;
+public class SampleCollector extends SampleSink {
+
+	private volatile ColumnarHistory history;
+	private long currentTimestamp;
+	private volatile PerfDataWriter perfDataWriter;
+	private volatile SegmentStore store;
+	private ArrayList<Shard> shards;
+	
+	public SampleCollector(int historySize) {
+		this(historySize, false);
 	}
 	
-	private HashMap<String, SampleMetadata> metadata;
-	private Ring<SlotData> history;
-	private long currentSlot;
-	private SlotData currentSlotData;
+	/**
+	 * compressed: keeps the slots older than the last 128 in blocks encoded by
+	 * delta of delta, that usually take a few bits per value instead of 64,
+	 * for a longer history in the same memory. Reading them costs their
+	 * decoding.
+	 */
+	public SampleCollector(int historySize, boolean compressed) {
+		shards = new ArrayList<>();
+		history = new ColumnarHistory(historySize, compressed);
+	}
 	
-	public SampleCollector(int historySize) {
-		metadata = new HashMap<>();
-		history = new Ring<SlotData>(historySize);
-		currentSlot = 0;
+	/** replaces the history with an empty one, without rollups, not while sampling */
+	void setHistory(int historySize, boolean compressed) {
+		ColumnarHistory h = new ColumnarHistory(historySize, compressed);
+		if (store != null) {
+			h.start(store.getNextSlot());
+		}
+		history = h;
+	}
+	
+	/**
+	 * Persists the slots in store, from the next slot it gives, and reads the
+	 * slots that are no longer in memory from it. Before the first slot.
+	 */
+	void setStore(SegmentStore store) {
+		history.start(store.getNextSlot());
+		this.store = store;
+	}
+	
+	/**
+	 * Adds a rollup tier after the last one, each slot of which sums up the
+	 * given number of slots of the previous tier. Before the first slot.
+	 */
+	void addRollup(int slots, int historySize) {
+		ColumnarHistory h = history;
+		while (h.getRollup() != null) {
+			h = h.getRollup();
+		}
+		h.setRollup(slots, historySize);
+	}
+	
+	/** returns the writer it replaces, null if none */
+	PerfDataWriter setPerfDataWriter(PerfDataWriter perfDataWriter) {
+		PerfDataWriter previous = this.perfDataWriter;
+		this.perfDataWriter = perfDataWriter;
+		return previous;
+	}
+	
+	/**
+	 * Closes the exported file, and the store after syncing it, once
+	 * sampling stopped. Slots of the store can still be read.
+	 */
+	void close() throws IOException {
+		PerfDataWriter w = setPerfDataWriter(null);
+		try {
+			if (w != null) {
+				w.close();
+			}
+		} finally {
+			SegmentStore store = this.store;
+			if (store != null) {
+				store.close();
+			}
+		}
+	}
+	
+	/**
+	 * Part of a slot, filled by another thread than the one that calls
+	 * startSlot() and endSlot(). Shards keep their samples until endSlot()
+	 * adds them, so that the shards of a slot can be filled concurrently
+	 * without locking. A shard must not be used between endSlot() and the
+	 * next startSlot(). The samples belong to their CounterData, which only
+	 * reuse them when sampled again, in a later slot.
+	 */
+	static final class Shard extends SampleSink {
+		private final ArrayList<String> names = new ArrayList<>();
+		private final ArrayList<String> instances = new ArrayList<>();
+		private final ArrayList<SampleData> samples = new ArrayList<>();
+		
+		@Override
+		public void add(String name, String instance, SampleData sample) {
+			names.add(name);
+			instances.add(instance);
+			samples.add(sample);
+		}
+		
+		private void clear() {
+			names.clear();
+			instances.clear();
+			samples.clear();
+		}
+	}
+	
+	/** new shard, merged into each slot at endSlot() */
+	synchronized Shard createShard() {
+		Shard shard = new Shard();
+		ArrayList<Shard> s = new ArrayList<>(shards);
+		s.add(shard);
+		shards = s;
+		return shard;
 	}
 	
 	public void startSlot() {
-		currentSlotData = new SlotData();
-		currentSlotData.slot = currentSlot;
-		currentSlotData.entry = new HashMap<>();
-		currentSlotData.timestamp = System.currentTimeMillis();
+		for (Shard shard: shards) {
+			shard.clear(); // left by a slot that failed
+		}
+		currentTimestamp = System.currentTimeMillis();
+		history.startSlot(currentTimestamp);
 	}
 	
+	/** stores the values of sample in the current slot, sample can be reused once add() returns */
+	@Override
 	public void add(String name, String instance, SampleData sample) {
-		HashMap<String, SampleData> h1 = currentSlotData.entry.get(name);
-		if (h1 == null) {
-			h1 = new HashMap<String, SampleData>();
-			currentSlotData.entry.put(name, h1);
-			metadata.put(name, sample.metadata);
+		ColumnarHistory.Row row = history.add(name, instance, sample);
+		if (store != null) {
+			store.add(row, history);
 		}
-		SampleData old = h1.put(instance, sample);
-		if (old != null) {
-			throw new InternalError("Duplicate instance: " + name + ":" + instance);
+		PerfDataWriter perfDataWriter = this.perfDataWriter;
+		if (perfDataWriter != null) {
+			perfDataWriter.write(name, instance, history.getHead(), currentTimestamp, sample);
 		}
-		
-System.out.println("Added sample for " + name + ":" + instance + " in slot " + currentSlot);
 	}
 	
 	public long getLastSlot() {
-		return currentSlot - 1;
+		return history.getHead() - 1;
 	}
 	
 	/**
@@ -62,10 +152,14 @@ System.out.println("Added sample for " + name + ":" + instance + " in slot " + c
 	 * {
 	 *   "timestamps": [ ... <array of timestamps> ],
 	 *   "slots": [ ... <array of slot nummbers> ],
+	 *   "slotsPerPoint": <slots summed up in each value, from each slot number>,
 	 *   "counters": {
 	 *     <counter collection>: {
 	 *       <counter name>: {
 	 *         <instance>: { "value": [ <value>, ... ], ... <other attributes of the counter, as array of values> }
+	 *         (hi-res counters: "samples", or "nanos" when EXACT, and "time" in percent, as arrays with one
+	 *         value per state)
+	 *         (rollups of instantaneous counters: the last value, and "min" and "max")
 	 *         ... <for all instances>
 	 *       },
 	 *       ...
@@ -74,33 +168,92 @@ System.out.println("Added sample for " + name + ":" + instance + " in slot " + c
 	 *   }
 	 * }
 	 * 
+	 * Slots that are no longer in memory are read from the store, if any.
 	 */
 	
 	public String toJson(long lastSlot, int entries) {
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		JsonArray list = new JsonArray();
-		
-		SlotData[] buffer = new SlotData[entries];
-		int cnt = history.getEntries(buffer, lastSlot);
+		StringWriter out = new StringWriter();
+		try {
+			writeJson(lastSlot, entries, out);
+		} catch (IOException e) { // from the store, not the StringWriter
+			throw new RuntimeException("Cannot read the history: " + e, e);
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Values over the given number of slots up to lastSlot, from the
+	 * coarsest rollup tier that still has at least the given number of
+	 * points over them, see CounterMgr.addRollup(). The slots after the
+	 * last complete slot of the tier are not in it.
+	 */
+	public String toJson(long lastSlot, int entries, int points) {
+		StringWriter out = new StringWriter();
+		try {
+			writeJson(lastSlot, entries, points, out);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read the history: " + e, e);
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Writes the JSON of toJson(lastSlot, entries) to out, compact, as it
+	 * reads the history, without building it in memory first.
+	 */
+	public void writeJson(long lastSlot, int entries, Writer out) throws IOException {
+		JsonWriter w = new JsonWriter(out);
+		writeJson(history, lastSlot, entries, 1, w);
+		w.flush();
+	}
+	
+	/** Writes the JSON of toJson(lastSlot, entries, points) to out, see writeJson(lastSlot, entries, out) */
+	public void writeJson(long lastSlot, int entries, int points, Writer out) throws IOException {
+		ColumnarHistory history = this.history;
+		long slotsPerPoint = 1;
+		while (history.getRollup() != null && entries / (slotsPerPoint * history.getRollupSlots()) >= points) {
+			slotsPerPoint *= history.getRollupSlots();
+			history = history.getRollup();
+		}
+		JsonWriter w = new JsonWriter(out);
+		writeJson(history, (lastSlot + 1) / slotsPerPoint - 1, (int)(entries / slotsPerPoint), slotsPerPoint, w);
+		w.flush();
+	}
+	
+	private void writeJson(ColumnarHistory history, long lastSlot, int entries, long slotsPerPoint, JsonWriter w)
+			throws IOException {
+		// slots lastSlot, lastSlot - 1, ..., that are still in the history
+		long head = history.getHead();
+		if (lastSlot > head - 1) {
+			lastSlot = head - 1;
+		}
+		SegmentStore store = this.store;
+		if (store != null && slotsPerPoint == 1 && lastSlot - entries + 1 < history.getFirstSlot()
+				&& store.getFirstSlot() < history.getFirstSlot()) {
+			history = store.read(lastSlot, entries);
+		}
+		int cnt = (int)Math.max(0, Math.min(entries, lastSlot - history.getFirstSlot() + 1));
+		long[] timestamps = new long[cnt];
+		cnt = history.readTimestamps(lastSlot, cnt, timestamps);
 
-		JsonArray jTimestamps = new JsonArray();
-		JsonArray jSlots = new JsonArray();
+		w.beginObject();
+		Columns columns = new Columns(history, lastSlot, cnt);
+		w.name("timestamps").beginArray();
+		for (int i = 0; i < cnt; i++) {
+			w.value(timestamps[i]);
+		}
+		w.endArray();
+		w.name("slots").beginArray();
 		for (int i = 0; i < cnt; i++) {
-			jTimestamps.add(buffer[i].timestamp);
-			jSlots.add(buffer[i].slot);
+			w.value((lastSlot - i) * slotsPerPoint);
 		}
+		w.endArray();
+		w.name("slotsPerPoint").value(slotsPerPoint);
 		
 		/*
-		* 
-		* buffer: [
-		*   collectionName: { (buffer[i].entry)
-		*     instanceName: {
-		*       SampleData
-		*     }
-		*   }
-		* ]
-		* 
-		* We want:
+		* For each collection, each instance that has values in the slots,
+		* and each counter of the instance, read the columns of the counter
+		* in the row of the instance:
 		* 
 		* {
 		*   collectionName: {
@@ -112,186 +265,220 @@ System.out.println("Added sample for " + name + ":" + instance + " in slot " + c
 		*     }
 		*   }
 		* }
-		* 
-		* We must do:
-		* 
-		* for each collection
-		*   for each instance
-		*     for each counter of the collection
-		*       get all values for "value"
-		*       get all values for "valueCumulative" etc., according to counter type
-		*
 		*/
 		
-		
-		
 		// for each collection
-		JsonObject jCollections = new JsonObject();
-		ArrayList<String> collectionNames = new ArrayList<>(metadata.keySet());
+		w.name("counters").beginObject();
+		ArrayList<String> collectionNames = history.getNames();
 		Collections.sort(collectionNames);
 		for (String collectionName: collectionNames) {
-			// all instances ever mentioned in all counters of this collection
-			Set<String> instances = new HashSet<String>();
-			for (int i = 0; i < cnt; i++) {
-				HashMap<String, SampleData> c = buffer[i].entry.get(collectionName);
-				if (c != null) {
-					instances.addAll(c.keySet());
-				}
-			}
-			SampleMetadata collectionMd = metadata.get(collectionName);
-			JsonObject jInstances = new JsonObject();
+			w.name(collectionName).beginObject();
 			// for each instance
-			for (String instance: instances) {
-				// for each counter of the collection
-				JsonObject jCounters = new JsonObject();
+			for (ColumnarHistory.Row row: history.getRows(collectionName)) {
+				if (!columns.setRow(row)) {
+					continue;
+				}
+				SampleMetadata md = row.metadata;
+				HistoryLayout l = row.layout;
+				// for each counter of the instance
+				w.name(row.instance).beginObject();
 				
 				// incremental counters
-				for (int cn = 0; cn < collectionMd.incrementalCounterNames.length; cn++) {
-					String counterName = collectionMd.incrementalCounterNames[cn];
-					// get all values for this counter in the collection/instance, for all slots
-					JsonObject jCounterValues = getIncrementalCounterValues(
-							collectionName, instance, cn, buffer, cnt);
-					// Add values in the counter
-					jCounters.add(counterName, jCounterValues);
-				} // for each counter of the collection
+				for (int cn = 0; cn < md.incrementalCounterNames.length; cn++) {
+					w.name(md.incrementalCounterNames[cn]);
+					writeIncrementalCounterValues(w, columns, l.incremental[cn]);
+				}
 				
 				// instantaneous counters
-				for (int cn = 0; cn < collectionMd.instantaneousCounterNames.length; cn++) {
-					String counterName = collectionMd.instantaneousCounterNames[cn];
-					// get all values for this counter in the collection/instance, for all slots
-					JsonObject jCounterValues = getInstantaneousCounterValues(
-							collectionName, instance, cn, buffer, cnt);
-					// Add values in the counter
-					jCounters.add(counterName, jCounterValues);
-				} // for each counter of the collection
+				for (int cn = 0; cn < md.instantaneousCounterNames.length; cn++) {
+					w.name(md.instantaneousCounterNames[cn]);
+					writeInstantaneousCounterValues(w, columns, l.instantaneous[cn]);
+				}
 
 				// measure counters
-				for (int cn = 0; cn < collectionMd.measureCounterNames.length; cn++) {
-					String counterName = collectionMd.measureCounterNames[cn];
-					// get all values for this counter in the collection/instance, for all slots
-					JsonObject jCounterValues = getMeasureCounterValues(
-							collectionName, instance, cn, buffer, cnt);
-					// Add values in the counter
-					jCounters.add(counterName, jCounterValues);
-				} // for each counter of the collection
+				for (int cn = 0; cn < md.measureCounterNames.length; cn++) {
+					w.name(md.measureCounterNames[cn]);
+					writeMeasureCounterValues(w, columns, l.measure[cn], md.measureCounterMinMax[cn]);
+				}
 				
-				// Add the counter into the instance
-				jInstances.add(instance, jCounters);
+				// hi-res counters
+				for (int cn = 0; cn < md.hiResCounterNames.length; cn++) {
+					w.name(md.hiResCounterNames[cn]);
+					writeHiResCounterValues(w, columns, l.hiRes[cn], md.hiResCounterStates[cn].length,
+							md.hiResCounterExact[cn], md.hiResCounterPerThread[cn]);
+				}
 				
+				w.endObject();
 			} // for each instance
-			jCollections.add(collectionName, jInstances);
+			w.endObject();
 		} // for each collection
-
-		JsonObject jResult = new JsonObject();
-		jResult.add("timestamps", jTimestamps);
-		jResult.add("slots", jSlots);
-		jResult.add("counters", jCollections);
-
-
-		String r = gson.toJson(jResult);
-
+		w.endObject();
+		w.endObject();
+	}
+	
+	/**
+	 * Reads the columns of a row over the slots of writeJson(), the values of
+	 * slot lastSlot - i at index i, decoding compressed blocks as it goes.
+	 * A slot that leaves the history while the row is read is no longer
+	 * present for the columns read after.
+	 */
+	private static final class Columns {
+		final ColumnarHistory history;
+		final long lastSlot;
+		final int cnt;
+		final boolean[] present;
+		final long[] values;
+		ColumnarHistory.Row row;
+		
+		Columns(ColumnarHistory history, long lastSlot, int cnt) {
+			this.history = history;
+			this.lastSlot = lastSlot;
+			this.cnt = cnt;
+			present = new boolean[cnt];
+			values = new long[cnt];
+		}
 		
-		return r;
+		/** false if row has no values in the slots */
+		boolean setRow(ColumnarHistory.Row row) {
+			this.row = row;
+			return history.readSlots(row, lastSlot, cnt, present) > 0;
+		}
+		
+		/** values of column, in a buffer reused by the next call */
+		long[] read(int column) {
+			return read(column, values);
+		}
+		
+		long[] read(int column, long[] values) {
+			history.read(row, column, lastSlot, cnt, values, present);
+			return values;
+		}
 	}
 	
-	private JsonObject getIncrementalCounterValues(String collectionName, String instance, int counterIndex, SlotData[] buffer, int cnt) {
-		JsonObject jCounter = new JsonObject();
-		// get all values for this counter in the collection/instance, for all slots
-		JsonArray jVal = new JsonArray();
-		JsonArray jValCumulative = new JsonArray();
-		for (int i = 0; i < cnt; i++) { // for each slot
-			HashMap<String, SampleData> collectionSampleData = buffer[i].entry.get(collectionName);
-			SampleData sampleData = (collectionSampleData != null ? collectionSampleData.get(instance) : null);
-			if (sampleData == null) {
-				jVal.add(JsonNull.INSTANCE);
-				jValCumulative.add(JsonNull.INSTANCE);
+	/** values of a column for the slots, null where the instance was not sampled */
+	private static void writeColumn(JsonWriter w, String name, Columns columns, int column) throws IOException {
+		long[] values = columns.read(column);
+		w.name(name).beginArray();
+		for (int i = 0; i < columns.cnt; i++) { // for each slot
+			if (columns.present[i]) {
+				w.value(values[i]);
 			} else {
-				jVal.add(sampleData.incrementalCounters[counterIndex]);
-				jValCumulative.add(sampleData.incrementalCountersCumulative[counterIndex]);
+				w.nullValue();
 			}
 		}
-		jCounter.add("values", jVal);
-		jCounter.add("valuesCumulative", jValCumulative);
-		return jCounter;
+		w.endArray();
 	}
 	
-	private JsonObject getInstantaneousCounterValues(String collectionName, String instance, int counterIndex, SlotData[] buffer, int cnt) {
-		JsonObject jCounter = new JsonObject();
-		// get all values for this counter in the collection/instance, for all slots
-		JsonArray jVal = new JsonArray();
-		JsonArray jDelta = new JsonArray();
-		for (int i = 0; i < cnt; i++) { // for each slot
-			HashMap<String, SampleData> collectionSampleData = buffer[i].entry.get(collectionName);
-			SampleData sampleData = (collectionSampleData != null ? collectionSampleData.get(instance) : null);
-			if (sampleData == null) {
-				jVal.add(JsonNull.INSTANCE);
-				jDelta.add(JsonNull.INSTANCE);
+	/** values of slots that had values in count, null for the others */
+	private static void writeColumn(JsonWriter w, String name, Columns columns, long[] values, long[] counts)
+			throws IOException {
+		w.name(name).beginArray();
+		for (int i = 0; i < columns.cnt; i++) { // for each slot
+			if (!columns.present[i] || counts[i] == 0) {
+				// not sampled, or no value in the slot
+				w.nullValue();
 			} else {
-				jVal.add(sampleData.instantaneousCountersValue[counterIndex]);
-				jDelta.add(sampleData.instantaneousCountersDelta[counterIndex]);
+				w.value(values[i]);
 			}
 		}
-		jCounter.add("values", jVal);
-		jCounter.add("delta", jDelta);
-		return jCounter;
+		w.endArray();
+	}
+	
+	private static void writeIncrementalCounterValues(JsonWriter w, Columns columns, int column) throws IOException {
+		w.beginObject();
+		writeColumn(w, "values", columns, column + HistoryLayout.INC_VALUE);
+		writeColumn(w, "valuesCumulative", columns, column + HistoryLayout.INC_CUMULATIVE);
+		w.endObject();
+	}
+	
+	private static void writeInstantaneousCounterValues(JsonWriter w, Columns columns, int column) throws IOException {
+		w.beginObject();
+		writeColumn(w, "values", columns, column + HistoryLayout.INST_VALUE);
+		writeColumn(w, "delta", columns, column + HistoryLayout.INST_DELTA);
+		if (columns.row.layout.rollup) {
+			writeColumn(w, "min", columns, column + HistoryLayout.INST_MIN);
+			writeColumn(w, "max", columns, column + HistoryLayout.INST_MAX);
+		}
+		w.endObject();
+	}
+
+	private static void writeMeasureCounterValues(JsonWriter w, Columns columns, int column, boolean minMax)
+			throws IOException {
+		w.beginObject();
+		writeColumn(w, "values", columns, column + HistoryLayout.MEASURE_VALUE);
+		writeColumn(w, "counts", columns, column + HistoryLayout.MEASURE_COUNT);
+		writeColumn(w, "valuesCumulative", columns, column + HistoryLayout.MEASURE_VALUE_CUMULATIVE);
+		writeColumn(w, "countsCumulative", columns, column + HistoryLayout.MEASURE_COUNT_CUMULATIVE);
+		if (minMax) {
+			long[] counts = columns.read(column + HistoryLayout.MEASURE_COUNT, new long[columns.cnt]);
+			writeColumn(w, "min", columns, columns.read(column + HistoryLayout.MEASURE_MIN), counts);
+			writeColumn(w, "max", columns, columns.read(column + HistoryLayout.MEASURE_MAX), counts);
+			writeColumn(w, "last", columns, columns.read(column + HistoryLayout.MEASURE_LAST), counts);
+		}
+		w.endObject();
 	}
 
-	private JsonObject getMeasureCounterValues(String collectionName, String instance, int counterIndex, SlotData[] buffer, int cnt) {
-		JsonObject jCounter = new JsonObject();
-		// get all values for this counter in the collection/instance, for all slots
-		JsonArray jValue = new JsonArray();
-		JsonArray jCount = new JsonArray();
-		JsonArray jValueCumulative = new JsonArray();
-		JsonArray jCountCumulative = new JsonArray();
+	private static void writeHiResCounterValues(JsonWriter w, Columns columns, int column, int stateCount,
+			boolean exact, boolean perThread) throws IOException {
+		int cnt = columns.cnt;
+		long[][] states = new long[stateCount][];
+		for (int j = 0; j < stateCount; j++) {
+			states[j] = columns.read(column + j, new long[cnt]);
+		}
 		
+		w.beginObject();
+		// tick counts (or nanos) per state, for each slot
+		w.name(exact ? "nanos" : "samples").beginArray();
 		for (int i = 0; i < cnt; i++) { // for each slot
-			HashMap<String, SampleData> collectionSampleData = buffer[i].entry.get(collectionName);
-			SampleData sampleData = (collectionSampleData != null ? collectionSampleData.get(instance) : null);
-			if (sampleData == null) {
-				jValue.add(JsonNull.INSTANCE);
-				jCount.add(JsonNull.INSTANCE);
-				jValueCumulative.add(JsonNull.INSTANCE);
-				jCountCumulative.add(JsonNull.INSTANCE);
-			} else {
-				jValue.add(sampleData.measureCountersValues[counterIndex]);
-				jCount.add(sampleData.measureCountersCounts[counterIndex]);
-				jValueCumulative.add(sampleData.measureCountersValuesCumulative[counterIndex]);
-				jCountCumulative.add(sampleData.measureCountersCountsCumulative[counterIndex]);
+			if (!columns.present[i]) {
+				w.nullValue();
+				continue;
 			}
+			w.beginArray();
+			for (int j = 0; j < stateCount; j++) {
+				w.value(states[j][i]);
+			}
+			w.endArray();
 		}
-		jCounter.add("values", jValue);
-		jCounter.add("counts", jCount);
-		jCounter.add("valuesCumulative", jValueCumulative);
-		jCounter.add("countsCumulative", jCountCumulative);
-		return jCounter;
-	}
-
-	private JsonObject getHiResCounterValues(String collectionName, String instance, int counterIndex, SlotData[] buffer, int cnt) {
-		JsonObject jCounter = new JsonObject();
-		// get all values for this counter in the collection/instance, for all slots
-		JsonArray jSamples = new JsonArray();
-		JsonArray jTime = new JsonArray(); // array of arrays of percentages as doubles
+		w.endArray();
 		
-//		for (int i = 0; i < cnt; i++) { // for each slot
-//			HashMap<String, SampleData> collectionSampleData = buffer[i].entry.get(collectionName);
-//			SampleData sampleData = (collectionSampleData != null ? collectionSampleData.get(instance) : null);
-//			if (sampleData == null) {
-//				jValue.add(JsonNull.INSTANCE);
-//				jCount.add(JsonNull.INSTANCE);
-//				jValueCumulative.add(JsonNull.INSTANCE);
-//				jCountCumulative.add(JsonNull.INSTANCE);
-//			} else {
-//				jValue.add(sampleData.hiResSlots.measureCountersValues[counterIndex]);
-//				jCount.add(sampleData.measureCountersCounts[counterIndex]);
-//				jValueCumulative.add(sampleData.measureCountersValuesCumulative[counterIndex]);
-//				jCountCumulative.add(sampleData.measureCountersCountsCumulative[counterIndex]);
-//			}
-//		}
-//		jCounter.add("values", jValue);
-//		jCounter.add("counts", jCount);
-//		jCounter.add("valuesCumulative", jValueCumulative);
-//		jCounter.add("countsCumulative", jCountCumulative);
-		return jCounter;
+		// percentages per state
+		w.name("time").beginArray();
+		for (int i = 0; i < cnt; i++) {
+			if (!columns.present[i]) {
+				w.nullValue();
+				continue;
+			}
+			long total = 0;
+			for (int j = 0; j < stateCount; j++) {
+				total += states[j][i];
+			}
+			w.beginArray();
+			for (int j = 0; j < stateCount; j++) {
+				w.value(total == 0 ? 0.0 : states[j][i] * 100.0 / total);
+			}
+			w.endArray();
+		}
+		w.endArray();
+		
+		if (perThread) {
+			// mean thread counts per state: ticks or nanos of all threads, over the ticks or nanos of the slot
+			long[] durations = columns.read(columns.row.layout.hiResTicks + (exact ? 1 : 0));
+			w.name("threads").beginArray();
+			for (int i = 0; i < cnt; i++) {
+				if (!columns.present[i] || durations[i] == 0) {
+					w.nullValue();
+					continue;
+				}
+				w.beginArray();
+				for (int j = 0; j < stateCount; j++) {
+					w.value((double)states[j][i] / durations[i]);
+				}
+				w.endArray();
+			}
+			w.endArray();
+		}
+		w.endObject();
 	}
 	
 //		JsonArray timestamps = new JsonArray();
@@ -365,9 +552,23 @@ System.out.println("Added sample for " + name + ":" + instance + " in slot " + c
 //	
 	
 	public void endSlot() {
-		history.add(currentSlotData);
-		++currentSlot;
-		currentSlotData = null;
+		for (Shard shard: shards) {
+			for (int i = 0; i < shard.samples.size(); i++) {
+				add(shard.names.get(i), shard.instances.get(i), shard.samples.get(i));
+			}
+			shard.clear();
+		}
+		long slot = history.getHead();
+		try {
+			if (store != null) {
+				store.endSlot(slot, currentTimestamp);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot persist slot " + slot + ": " + e, e);
+		} finally {
+			// published once persisted, so that reports reading the store find the slots before head
+			history.endSlot();
+		}
 	}
 	
 }
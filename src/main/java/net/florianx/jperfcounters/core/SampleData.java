@@ -2,6 +2,8 @@ package net.florianx.jperfcounters.core;
 
 import java.nio.ByteBuffer;
 
+import org.HdrHistogram.Histogram;
+
 import net.florianx.jperfcounters.core.CounterData.Data;
 
 public class SampleData {
@@ -15,10 +17,17 @@ public class SampleData {
 	long[] measureCountersValues;
 	long[] measureCountersCountsCumulative;
 	long[] measureCountersValuesCumulative;
-	byte[][] histograms; // compressed histogram to byte[]
-	long[][] hiResSlots;
+	// for MIN_MAX measure counters, 0 when no value was recorded in the slot
+	long[] measureCountersMin;
+	long[] measureCountersMax;
+	long[] measureCountersLast;
+	byte[][] histograms; // compressed histogram to byte[], possibly larger than needed
+	int[] histogramLengths; // length of the compressed histograms, 0 for a packed histogram without values
+	long[][] hiResSlots; // per state: hi-res tick counts, or nanoseconds for EXACT counters
+	int hiResTicks; // hi-res ticks taken in the slot
+	long durationNanos; // time covered by the sample
 	
-	SampleData(CounterData cd, Data data, SampleData lastSample) {
+	SampleData(CounterData cd) {
 		metadata = cd.getSampleMetadata();
 		
 		incrementalCounters = new long[cd.incrementalCounters.length];
@@ -29,11 +38,28 @@ public class SampleData {
 		measureCountersCountsCumulative = new long[cd.measureCounters.length];
 		measureCountersValues = new long[cd.measureCounters.length];
 		measureCountersValuesCumulative = new long[cd.measureCounters.length];
+		measureCountersMin = new long[cd.measureCounters.length];
+		measureCountersMax = new long[cd.measureCounters.length];
+		measureCountersLast = new long[cd.measureCounters.length];
 		histograms = new byte[cd.histogramCounters.length][];
+		histogramLengths = new int[cd.histogramCounters.length];
 		hiResSlots = new long[cd.hiResCounters.length][];
 		for (int i = 0; i < cd.hiResCounters.length; i++) {
 			hiResSlots[i] = new long[cd.hiResCounters[i].getStateCount()];
 		}
+	}
+	
+	SampleData(CounterData cd, Data data, SampleData lastSample) {
+		this(cd);
+		set(cd, data, lastSample, ByteBuffer.allocate(0));
+	}
+	
+	/**
+	 * Copies data into this sample, reusing its arrays. lastSample may be this
+	 * sample itself. histogramBuffer is a scratch buffer, returns it or a larger one.
+	 */
+	ByteBuffer set(CounterData cd, Data data, SampleData lastSample, ByteBuffer histogramBuffer) {
+		metadata = cd.getSampleMetadata();
 		
 		// copy 
 		for (int i = 0; i < incrementalCounters.length; i++) {
@@ -59,18 +85,48 @@ public class SampleData {
 					(lastSample != null ? lastSample.measureCountersValuesCumulative[i] : 0)
 					+ measureCountersValues[i];
 
+			MinMaxCells minMax = data.measureCountersMinMax;
+			if (cd.measureCounters[i].minMax && minMax.hasValue(i)) {
+				measureCountersMin[i] = minMax.getMin(i);
+				measureCountersMax[i] = minMax.getMax(i);
+				measureCountersLast[i] = minMax.getLast(i);
+			} else {
+				measureCountersMin[i] = 0;
+				measureCountersMax[i] = 0;
+				measureCountersLast[i] = 0;
+			}
 		}
-		for (int i = 0; i < data.histograms.length; i++) {
-			ByteBuffer b = ByteBuffer.allocate(data.histograms[i].getNeededByteBufferCapacity());
-			int written = data.histograms[i].encodeIntoCompressedByteBuffer(b);
-			byte[] bytes = new byte[written];
-			b.flip();
-			b.get(bytes);
-			histograms[i] = bytes;
+		for (int i = 0; i < histograms.length; i++) {
+			Histogram h = data.histograms.get(i);
+			if (h == null) { // packed histogram without values
+				histogramLengths[i] = 0;
+				continue;
+			}
+			int needed = h.getNeededByteBufferCapacity();
+			if (histogramBuffer.capacity() < needed) {
+				histogramBuffer = ByteBuffer.allocate(needed);
+			}
+			histogramBuffer.clear();
+			int written = h.encodeIntoCompressedByteBuffer(histogramBuffer);
+			if (histograms[i] == null || histograms[i].length < written) {
+				histograms[i] = new byte[written];
+			}
+			histogramBuffer.flip();
+			histogramBuffer.get(histograms[i], 0, written);
+			histogramLengths[i] = written;
 		}
+		hiResTicks = data.hiResTicks;
+		durationNanos = data.durationNanos;
 		for (int i = 0; i < hiResSlots.length; i++) {
-			System.arraycopy(data.hiResSlots[i], 0, hiResSlots[i], 0, hiResSlots[i].length);
+			if (data.hiResNanos[i] != null) {
+				for (int j = 0; j < hiResSlots[i].length; j++) {
+					hiResSlots[i][j] = data.hiResNanos[i].get(j);
+				}
+			} else {
+				System.arraycopy(data.hiResSlots[i], 0, hiResSlots[i], 0, hiResSlots[i].length);
+			}
 		}
+		return histogramBuffer;
 	}
 
 }
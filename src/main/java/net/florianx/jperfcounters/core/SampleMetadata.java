@@ -5,8 +5,14 @@ public class SampleMetadata {
 	String[] incrementalCounterNames;
 	String[] instantaneousCounterNames;
 	String[] measureCounterNames;
+	boolean[] measureCounterMinMax; // measure counters with min, max and last values
 	String[] histogramCounterNames;
 	String[] hiResCounterNames;
 	String[][] hiResCounterStates;
+	boolean[] hiResCounterExact; // nanoseconds per state instead of hi-res tick counts
+	boolean[] hiResCounterPerThread; // states of all registered threads
+	
+	HistoryLayout historyLayout; // computed on first use
+	HistoryLayout rollupLayout;
 
 }
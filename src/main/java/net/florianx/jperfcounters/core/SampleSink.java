@@ -0,0 +1,19 @@
+package net.florianx.jperfcounters.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where CounterData.sample() puts its samples: a SampleCollector, or one
+ * of its shards when the slot is sampled by several threads.
+ */
+public abstract class SampleSink {
+	
+	// scratch buffer to encode histograms, shared by the CounterData sampled into this sink
+	ByteBuffer histogramBuffer = ByteBuffer.allocate(0);
+	
+	/**
+	 * Takes the sample of name:instance for the current slot. The sample
+	 * belongs to the CounterData, that updates it at its next sample.
+	 */
+	public abstract void add(String name, String instance, SampleData sample);
+}
@@ -0,0 +1,257 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling threads of a CounterMgr. Hi-res ticks and slot samples (Normal
+ * and Histo) run on two threads of their own, each against absolute
+ * System.nanoTime() deadlines: a slow sample does not delay the hi-res
+ * ticks, and a late tick or sample does not shift the ones after it.
+ *
+ * A sample that is late still takes everything recorded since the previous
+ * one, so no slot is dropped: the slot is just longer. Deadlines missed
+ * meanwhile are counted in the sampler's own CounterData, see CounterMgr.
+ *
+ * The periods are read from the CounterMgr at each deadline. When they
+ * change, reconfigure() wakes the threads up, and the current slot ends
+ * one new period after it started (or right away, if that is past).
+ *
+ * With a hi-res CPU budget, the hi-res thread measures the time its ticks
+ * take. Above the budget, it halves its frequency, down to one tick per
+ * slot; well below, it doubles it again, up to the configured frequency.
+ */
+final class Sampler {
+
+	// how often the hi-res thread checks its cost against the budget
+	private static final long BUDGET_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+	private final CounterMgr counterMgr;
+	private final SampleCollector sampleCollector;
+	private final ShardedSampling sharded;
+	private Thread hiResThread;
+	private Thread slotThread;
+	private volatile boolean stopped;
+	// incremented by reconfigure(), to wake up the threads with the new periods
+	private volatile int configVersion;
+
+	// overruns, as data
+	private final IncrementalCounter hiResOverruns;
+	private final MeasureCounter hiResLateness;
+	private final IncrementalCounter slotOverruns;
+	private final MeasureCounter slotLateness;
+	private final MeasureCounter sampleDuration;
+	private final InstantaneousCounter hiResPeriodCounter;
+
+	Sampler(CounterMgr counterMgr, SampleCollector sampleCollector, CounterDataBuilder builder) {
+		this.counterMgr = counterMgr;
+		this.sampleCollector = sampleCollector;
+		this.sharded = new ShardedSampling(sampleCollector);
+
+		builder.timeUnit(TimeUnit.MICROSECONDS);
+		hiResOverruns = builder.createIncrementalCounter("hiResOverruns", CounterOption.RELAXED);
+		hiResLateness = builder.createMeasureCounter("hiResLateness", CounterOption.RELAXED, CounterOption.MIN_MAX);
+		slotOverruns = builder.createIncrementalCounter("slotOverruns", CounterOption.RELAXED);
+		slotLateness = builder.createMeasureCounter("slotLateness", CounterOption.RELAXED, CounterOption.MIN_MAX);
+		sampleDuration = builder.createMeasureCounter("sampleDuration", CounterOption.RELAXED, CounterOption.MIN_MAX);
+		hiResPeriodCounter = builder.createInstantaneousCounter("hiResPeriod", CounterOption.RELAXED);
+		builder.create();
+	}
+
+	void start() {
+		// align slots on the wall clock, so that Histo samples fall on multiples of their period
+		long slotPeriod = counterMgr.getSlotPeriodNanos();
+		long hiResPeriod = slotPeriod / counterMgr.getSampleNormalMultiplier();
+		int histoSlots = counterMgr.getHistogramSlots();
+		long nowMillis = System.currentTimeMillis();
+		long now = System.nanoTime();
+		long histoPeriodMillis = TimeUnit.NANOSECONDS.toMillis(slotPeriod) * histoSlots;
+		long histoDelay = TimeUnit.MILLISECONDS.toNanos(histoPeriodMillis - nowMillis % histoPeriodMillis);
+		// number of the first slot deadline, those multiple of histoSlots are Histo samples
+		final long firstSlot = (histoSlots - (histoDelay / slotPeriod) % histoSlots) % histoSlots;
+		final long firstSlotStart = now + histoDelay % slotPeriod - slotPeriod;
+		final long firstTick = now + histoDelay % hiResPeriod - hiResPeriod;
+
+		hiResThread = new Thread("jperfcounters-hires") {
+			public void run() {
+				runHiRes(firstTick);
+			}
+		};
+		slotThread = new Thread("jperfcounters-sampler") {
+			public void run() {
+				runSlots(firstSlot, firstSlotStart);
+			}
+		};
+		for (Thread t: new Thread[] { hiResThread, slotThread }) {
+			t.setDaemon(true);
+			t.setPriority(Thread.MAX_PRIORITY);
+			t.start();
+		}
+	}
+
+	/** stops the threads, and waits for a sample in progress to end */
+	void stop() {
+		stopped = true;
+		wakeUp();
+		boolean interrupted = false;
+		for (Thread t: new Thread[] { hiResThread, slotThread }) {
+			while (t != null && t != Thread.currentThread() && t.isAlive()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** makes the threads take the new periods of the CounterMgr */
+	void reconfigure() {
+		++configVersion; // only called with the CounterMgr lock held
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		if (hiResThread != null) {
+			LockSupport.unpark(hiResThread);
+			LockSupport.unpark(slotThread);
+		}
+	}
+
+	/** @param tick deadline of the previous tick */
+	private void runHiRes(long tick) {
+		int divisor = 1; // adaptive: ticks are divisor times less frequent than configured
+		long windowStart = System.nanoTime();
+		long windowCost = 0;
+		boolean reconfigured = false;
+		while (!stopped) {
+			int version = configVersion;
+			int hiResPerSlot = counterMgr.getSampleNormalMultiplier();
+			divisor = Math.min(divisor, hiResPerSlot);
+			long period = counterMgr.getSlotPeriodNanos() / hiResPerSlot * divisor;
+			hiResPeriodCounter.set(TimeUnit.NANOSECONDS.toMicros(period));
+			if (reconfigured) {
+				// no overrun for ticks missed because of the change
+				tick = Math.max(tick, System.nanoTime() - period);
+				reconfigured = false;
+			}
+			long deadline = tick + period;
+			if (!sleepUntil(deadline, version)) {
+				reconfigured = true;
+				continue;
+			}
+			long start = System.nanoTime();
+			try {
+				long late = start - deadline;
+				if (late >= period) {
+					// ticks we missed are lost, catch up with the next deadline
+					long missed = late / period;
+					hiResOverruns.add(missed);
+					deadline += missed * period;
+					late -= missed * period;
+				}
+				hiResLateness.recordValue(TimeUnit.NANOSECONDS.toMicros(late));
+				for (CounterData cd: counterMgr.getHiResSampleables()) {
+					cd.sampleHiRes();
+				}
+			} catch (Throwable e) {
+				uncaught(e);
+			}
+			tick = deadline;
+
+			long end = System.nanoTime();
+			windowCost += end - start;
+			if (end - windowStart >= BUDGET_WINDOW) {
+				double budget = counterMgr.getHiResCpuBudget();
+				double cost = (double)windowCost / (end - windowStart);
+				if (budget <= 0) {
+					divisor = 1;
+				} else if (cost > budget && divisor * 2 <= hiResPerSlot) {
+					divisor *= 2;
+				} else if (cost * 4 < budget && divisor > 1) {
+					// would still be within half the budget at twice the frequency
+					divisor /= 2;
+				}
+				windowStart = end;
+				windowCost = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param slot number of the slot, those multiple of the Histo period get a Histo sample
+	 * @param slotStart deadline of the previous sample
+	 */
+	private void runSlots(long slot, long slotStart) {
+		int slotVersion = configVersion;
+		while (!stopped) {
+			int version = configVersion;
+			long period = counterMgr.getSlotPeriodNanos();
+			long deadline = slotStart + period;
+			if (version != slotVersion) {
+				// reconfigured during the slot: end it now if the new period is over
+				deadline = Math.max(deadline, System.nanoTime());
+			}
+			// the sample takes what BufferedSetters published one hi-res period before it
+			if (!sleepUntil(deadline - period / counterMgr.getSampleNormalMultiplier(), version)) {
+				continue;
+			}
+			for (CounterData cd: counterMgr.getSampleables()) {
+				cd.requestFlush();
+			}
+			if (!sleepUntil(deadline, version)) {
+				continue;
+			}
+			long start = System.nanoTime();
+			long missed = 0;
+			try {
+				long late = start - deadline;
+				if (late >= period) {
+					// one longer slot instead of the ones we missed
+					missed = late / period;
+					slotOverruns.add(missed);
+					late -= missed * period;
+				}
+				slotLateness.recordValue(TimeUnit.NANOSECONDS.toMicros(late));
+				// Histo if this deadline or a missed one is a multiple of histoSlots
+				int histoSlots = counterMgr.getHistogramSlots();
+				PerfSampleable.SampleType sampleType = missed >= (histoSlots - slot % histoSlots) % histoSlots
+						? PerfSampleable.SampleType.Histo
+						: PerfSampleable.SampleType.Normal;
+				sampleCollector.startSlot();
+				sharded.sample(counterMgr.getSampleables(), sampleType, counterMgr.getSamplingThreads());
+				sampleCollector.endSlot();
+				sampleDuration.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			} catch (Throwable e) {
+				uncaught(e);
+			}
+			slot += missed + 1;
+			slotStart = deadline + missed * period;
+			slotVersion = version;
+		}
+		sharded.shutdown();
+	}
+
+	/** returns false when stopped, or when reconfigured since version was read */
+	private boolean sleepUntil(long deadline, int version) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (stopped || configVersion != version) {
+				return false;
+			}
+			LockSupport.parkNanos(this, remaining);
+		}
+		return !stopped && configVersion == version;
+	}
+
+	private static void uncaught(Throwable e) {
+		e.printStackTrace(System.err);
+		Thread.UncaughtExceptionHandler h = Thread.getDefaultUncaughtExceptionHandler();
+		if (h != null) {
+			h.uncaughtException(Thread.currentThread(), e);
+		}
+	}
+}
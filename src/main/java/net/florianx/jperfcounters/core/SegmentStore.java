@@ -0,0 +1,637 @@
+package net.florianx.jperfcounters.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the slots of a SampleCollector in segment files of a directory, so
+ * that the history outlives the process and reaches further back than the
+ * one in memory. Each slot is appended as one record when it ends, and the
+ * file is synced at most every syncMillis. Segments are rotated when they
+ * reach segmentBytes, and the oldest ones deleted when all of them take
+ * more than maxBytes, or when they were last written more than maxAgeMillis
+ * ago. Reads map the segments they need, and start from an index of their
+ * records, built by the first read of each part of a segment.
+ *
+ * Opening the store recovers the last segment of a previous run: it is
+ * truncated after its last complete record, and slots are numbered after
+ * the last one it has, in a new segment. Segments are expired both at
+ * rotation and when the store opens.
+ *
+ * File layout, big endian:
+ * <pre>
+ * segment files named by the first slot they may have, on 20 digits, with the .seg extension
+ * header (HEADER_SIZE bytes)
+ *   int magic, byte version, 3 bytes reserved, long firstSlot
+ * records, one after the other
+ *   int length (of type and payload), int CRC32 (of type and payload), byte type, payload
+ * DEFINITION records, before the first slot of a row in the segment
+ *   varint id, string name, string instance
+ *   strings: incremental, instantaneous and measure counter names, then one byte per measure
+ *   counter, 1 for MIN_MAX
+ *   strings: histogram counter names
+ *   varint count, then for each hi-res counter: string name, strings: states,
+ *   byte flags (1: EXACT, 2: PER_THREAD)
+ * SLOT records
+ *   varlong slot, varlong timestamp, varint count, then for each row sampled in the slot:
+ *   varint id, the values of the columns of the row (see HistoryLayout), as zigzag varlongs,
+ *   then for each histogram counter a varint length and the compressed histogram
+ * strings are a varint length followed by UTF-8 bytes, lists of strings a varint count followed
+ * by the strings
+ * </pre>
+ */
+class SegmentStore {
+
+	static final int MAGIC = 0x4A504353; // "JPCS"
+	static final byte VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_HEADER_SIZE = 9;
+	static final byte DEFINITION = 1;
+	static final byte SLOT = 2;
+	static final String EXTENSION = ".seg";
+
+	// a SLOT record out of INDEX_SLOTS is in the index of its segment
+	static final int INDEX_SLOTS = 64;
+
+	private static final class Segment {
+		final File file;
+		final long firstSlot;
+		volatile long size; // of its complete records
+
+		// index of the records up to indexed, built by reads, under the lock of the segment
+		private int indexed = HEADER_SIZE;
+		private int[] definitions = new int[64]; // offset of the DEFINITION record of each id
+		private int definitionCount;
+		private long[] indexSlots = new long[16]; // slot of every INDEX_SLOTS-th SLOT record
+		private int[] indexOffsets = new int[16]; // and its offset
+		private int indexCount;
+		private int slotRecords;
+
+		Segment(File file, long firstSlot, long size) {
+			this.file = file;
+			this.firstSlot = firstSlot;
+			this.size = size;
+		}
+
+		/** indexes the records of b, the segment mapped up to size, not indexed yet */
+		synchronized void index(ByteBuffer b, int size) {
+			while (indexed < size) {
+				int pos = indexed;
+				int length = b.getInt(pos);
+				b.position(pos + RECORD_HEADER_SIZE);
+				if (b.get(pos + RECORD_HEADER_SIZE - 1) == DEFINITION) {
+					int id = (int)getVarLong(b);
+					if (id >= definitions.length) {
+						definitions = Arrays.copyOf(definitions, Math.max(definitions.length * 2, id + 1));
+					}
+					definitions[id] = pos;
+					definitionCount = Math.max(definitionCount, id + 1);
+				} else if (slotRecords++ % INDEX_SLOTS == 0) {
+					if (indexCount == indexSlots.length) {
+						indexSlots = Arrays.copyOf(indexSlots, indexCount * 2);
+						indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+					}
+					indexSlots[indexCount] = getVarLong(b);
+					indexOffsets[indexCount++] = pos;
+				}
+				indexed = pos + RECORD_HEADER_SIZE - 1 + length;
+			}
+		}
+
+		/**
+		 * Offset of the last indexed SLOT record before slot, or of the first
+		 * record: reads of slot can skip the records before it.
+		 */
+		synchronized int seek(long slot) {
+			int low = 0;
+			int high = indexCount - 1;
+			int found = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (indexSlots[mid] <= slot) {
+					found = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return found < 0 ? HEADER_SIZE : indexOffsets[found];
+		}
+
+		/** offsets of the DEFINITION records by id, of the records indexed */
+		synchronized int[] getDefinitions() {
+			return Arrays.copyOf(definitions, definitionCount);
+		}
+	}
+
+	private final File directory;
+	private final long segmentBytes;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private final long syncMillis;
+	private ArrayList<Segment> segments; // oldest first, replaced on changes
+	private long nextSlot; // of the first slot written by this run
+
+	// writer, only used by the thread that ends slots
+	private Segment current;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private HashMap<ColumnarHistory.Row, Integer> ids; // of the rows defined in the current segment
+	private final ArrayList<ColumnarHistory.Row> defined = new ArrayList<>(); // in the slot being written
+	private ByteBuffer definitions = ByteBuffer.allocate(4096); // records, written before the slot
+	private ByteBuffer slot = ByteBuffer.allocate(65536); // entries of the slot record
+	private int slotEntries;
+	private long lastSync;
+	private final CRC32 crc = new CRC32();
+
+	SegmentStore(File directory, long segmentBytes, long maxBytes, long maxAgeMillis, long syncMillis)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		this.syncMillis = syncMillis;
+		segments = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			Arrays.sort(files); // by first slot
+			for (File f: files) {
+				String n = f.getName();
+				if (n.endsWith(EXTENSION) && n.length() == 20 + EXTENSION.length()) {
+					segments.add(new Segment(f, Long.parseLong(n.substring(0, 20)), f.length()));
+				}
+			}
+		}
+		if (!segments.isEmpty()) {
+			recover(segments.get(segments.size() - 1));
+		}
+		openSegment(nextSlot);
+		// a process that restarts more often than it rotates would keep them forever
+		expire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Truncates the segment after its last complete record, and numbers the
+	 * next slots after the last one it has, or its first slot if none.
+	 */
+	private void recover(Segment s) throws IOException {
+		nextSlot = s.firstSlot;
+		try (RandomAccessFile f = new RandomAccessFile(s.file, "rw")) {
+			FileChannel ch = f.getChannel();
+			long end = HEADER_SIZE;
+			if (ch.size() >= HEADER_SIZE) {
+				MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if (b.getInt(0) != MAGIC || b.get(4) != VERSION) {
+					throw new IOException("Not a history segment: " + s.file);
+				}
+				int pos = HEADER_SIZE;
+				while (true) {
+					int length = record(b, pos);
+					if (length < 0) {
+						break;
+					}
+					if (b.get(pos + RECORD_HEADER_SIZE - 1) == SLOT) {
+						b.position(pos + RECORD_HEADER_SIZE);
+						nextSlot = getVarLong(b) + 1;
+					}
+					pos += RECORD_HEADER_SIZE - 1 + length;
+				}
+				end = pos;
+			}
+			ch.truncate(end); // torn record at the end, if any
+			s.size = end;
+		}
+	}
+
+	/** length of the record at pos, -1 if it is torn, or at the end */
+	private int record(ByteBuffer b, int pos) {
+		if (pos + RECORD_HEADER_SIZE > b.limit()) {
+			return -1;
+		}
+		int length = b.getInt(pos);
+		if (length < 1 || pos + RECORD_HEADER_SIZE - 1 + (long)length > b.limit()) {
+			return -1;
+		}
+		crc.reset();
+		for (int i = 0; i < length; i++) {
+			crc.update(b.get(pos + RECORD_HEADER_SIZE - 1 + i));
+		}
+		return (int)crc.getValue() == b.getInt(pos + 4) ? length : -1;
+	}
+
+	/** the first slot to write, after the ones of the segments */
+	long getNextSlot() {
+		return nextSlot;
+	}
+
+	/** oldest slot the segments may have */
+	synchronized long getFirstSlot() {
+		return segments.get(0).firstSlot;
+	}
+
+	private void openSegment(long firstSlot) throws IOException {
+		File f = new File(directory, String.format("%020d", firstSlot) + EXTENSION);
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0); // only a segment without slots can have the name
+		channel = file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).put(VERSION).put((byte)0).putShort((short)0).putLong(firstSlot);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		current = new Segment(f, firstSlot, HEADER_SIZE);
+		ids = new HashMap<>();
+		synchronized (this) {
+			ArrayList<Segment> s = new ArrayList<>(segments);
+			if (!s.isEmpty() && s.get(s.size() - 1).file.equals(f)) {
+				s.remove(s.size() - 1);
+			}
+			s.add(current);
+			segments = s;
+		}
+	}
+
+	/** adds the values of row in the slot being written of history to the slot record */
+	void add(ColumnarHistory.Row row, ColumnarHistory history) {
+		Integer id = ids.get(row);
+		if (id == null) {
+			id = ids.size();
+			ids.put(row, id);
+			defined.add(row);
+			define(id, row);
+		}
+		int capacity = history.capacity();
+		int pos = history.position(history.getHead());
+		HistoryLayout l = row.layout;
+		ensure(10 * (l.width + 1));
+		putVarLong(slot, id);
+		for (int c = 0; c < l.width; c++) {
+			putVarLong(slot, zigzag(row.columns[c * capacity + pos]));
+		}
+		for (int i = 0; i < l.histograms; i++) {
+			int length = row.histogramLengths[i][pos];
+			ensure(10 + length);
+			putVarLong(slot, length);
+			slot.put(row.histograms[i][pos], 0, length);
+		}
+		slotEntries++;
+	}
+
+	private void ensure(int bytes) {
+		if (slot.remaining() < bytes) {
+			slot = grow(slot, bytes);
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer b, int bytes) {
+		ByteBuffer g = ByteBuffer.allocate(Math.max(b.capacity() * 2, b.position() + bytes));
+		b.flip();
+		g.put(b);
+		return g;
+	}
+
+	private void define(int id, ColumnarHistory.Row row) {
+		SampleMetadata md = row.metadata;
+		ByteBuffer b = ByteBuffer.allocate(1024);
+		b.position(RECORD_HEADER_SIZE);
+		b = putVarLong(b, id);
+		b = putString(b, row.name);
+		b = putString(b, row.instance);
+		b = putStrings(b, md.incrementalCounterNames);
+		b = putStrings(b, md.instantaneousCounterNames);
+		b = putStrings(b, md.measureCounterNames);
+		for (boolean minMax: md.measureCounterMinMax) {
+			b = putByte(b, minMax ? 1 : 0);
+		}
+		b = putStrings(b, md.histogramCounterNames);
+		b = putVarLong(b, md.hiResCounterNames.length);
+		for (int i = 0; i < md.hiResCounterNames.length; i++) {
+			b = putString(b, md.hiResCounterNames[i]);
+			b = putStrings(b, md.hiResCounterStates[i]);
+			b = putByte(b, (md.hiResCounterExact[i] ? 1 : 0) | (md.hiResCounterPerThread[i] ? 2 : 0));
+		}
+		frame(b, DEFINITION);
+		if (definitions.remaining() < b.remaining()) {
+			definitions = grow(definitions, b.remaining());
+		}
+		definitions.put(b);
+	}
+
+	/** fills the header of the record in b, from 0 to its position, and flips b */
+	private void frame(ByteBuffer b, byte type) {
+		int length = b.position() - RECORD_HEADER_SIZE + 1;
+		b.put(RECORD_HEADER_SIZE - 1, type);
+		crc.reset();
+		crc.update(b.array(), RECORD_HEADER_SIZE - 1, length);
+		b.putInt(0, length);
+		b.putInt(4, (int)crc.getValue());
+		b.flip();
+	}
+
+	/**
+	 * Appends the records of the slot, rotates the segment if it is full.
+	 * A record that failed to be written is removed, the next slot can be
+	 * written after it, and defines again the rows the slot defined.
+	 */
+	void endSlot(long slotNumber, long timestamp) throws IOException {
+		ByteBuffer entries = slot;
+		entries.flip();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 30 + entries.remaining());
+		record.position(RECORD_HEADER_SIZE);
+		putVarLong(record, slotNumber);
+		putVarLong(record, zigzag(timestamp));
+		putVarLong(record, slotEntries);
+		record.put(entries);
+		frame(record, SLOT);
+		definitions.flip();
+		long size = current.size;
+		try {
+			write(definitions);
+			write(record);
+		} catch (IOException e) {
+			for (ColumnarHistory.Row row: defined) {
+				ids.remove(row); // the last ids, given again in the same order
+			}
+			channel.truncate(size);
+			channel.position(size);
+			throw e;
+		} finally {
+			definitions.clear();
+			slot.clear();
+			slotEntries = 0;
+			defined.clear();
+		}
+		current.size = channel.position();
+		long now = System.currentTimeMillis();
+		if (now - lastSync >= syncMillis) {
+			channel.force(false);
+			lastSync = now;
+		}
+		if (current.size >= segmentBytes) {
+			channel.force(false);
+			file.close();
+			openSegment(slotNumber + 1);
+			expire(now);
+		}
+	}
+
+	/** writes b at the end of the current segment */
+	void write(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+	}
+
+	/**
+	 * Syncs and closes the current segment. Slots can still be read, but
+	 * no longer written.
+	 */
+	void close() throws IOException {
+		try {
+			channel.force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	/** deletes the oldest segments, but the current one, while they are too large or too old */
+	private synchronized void expire(long now) {
+		long total = 0;
+		for (Segment s: segments) {
+			total += s.size;
+		}
+		ArrayList<Segment> s = new ArrayList<>(segments);
+		while (s.size() > 1) {
+			Segment oldest = s.get(0);
+			if (total <= maxBytes && now - oldest.file.lastModified() <= maxAgeMillis) {
+				break;
+			}
+			if (!oldest.file.delete() && oldest.file.exists()) {
+				break; // retried at the next rotation or start
+			}
+			total -= oldest.size;
+			s.remove(0);
+		}
+		segments = s;
+	}
+
+	/**
+	 * History of the slots from lastSlot - cnt + 1 to lastSlot that are in
+	 * the segments, in a ColumnarHistory of these slots only.
+	 */
+	ColumnarHistory read(long lastSlot, int cnt) throws IOException {
+		ArrayList<Segment> segments;
+		synchronized (this) {
+			segments = this.segments;
+		}
+		long from = Math.max(lastSlot - cnt + 1, segments.get(0).firstSlot);
+		ColumnarHistory history = new ColumnarHistory((int)Math.max(1, lastSlot - from + 1));
+		history.start(from);
+		// one SampleMetadata per set of counters of all segments, so that rows span segments
+		// and rows with the same counters share their layout
+		HashMap<ByteBuffer, SampleMetadata> metadata = new HashMap<>();
+		for (int i = 0; i < segments.size(); i++) {
+			Segment s = segments.get(i);
+			if (s.firstSlot > lastSlot) {
+				break;
+			}
+			if (i + 1 < segments.size() && segments.get(i + 1).firstSlot <= from) {
+				continue;
+			}
+			if (!read(s, history, lastSlot, metadata)) {
+				break;
+			}
+		}
+		while (history.getHead() <= lastSlot) {
+			history.endSlot();
+		}
+		return history;
+	}
+
+	/**
+	 * Reads the slots of s into history until lastSlot, returns false when
+	 * there. Starts from the index, skips the records before the head of
+	 * history, and only decodes the definitions of the rows in the slots read.
+	 */
+	private boolean read(Segment s, ColumnarHistory history, long lastSlot, HashMap<ByteBuffer, SampleMetadata> metadata)
+			throws IOException {
+		int size = (int)s.size;
+		MappedByteBuffer b;
+		try (RandomAccessFile f = new RandomAccessFile(s.file, "r")) {
+			b = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (FileNotFoundException e) {
+			return true; // expired since
+		}
+		s.index(b, size);
+		int[] definitions = s.getDefinitions();
+		String[] names = new String[definitions.length];
+		String[] instances = new String[definitions.length];
+		SampleMetadata[] mds = new SampleMetadata[definitions.length];
+		int pos = s.seek(history.getHead());
+		while (pos < size) {
+			int length = b.getInt(pos);
+			byte type = b.get(pos + RECORD_HEADER_SIZE - 1);
+			b.position(pos + RECORD_HEADER_SIZE);
+			pos += RECORD_HEADER_SIZE - 1 + length;
+			if (type == DEFINITION) {
+				continue; // from the index, when a slot has the row
+			}
+			long slotNumber = getVarLong(b);
+			if (slotNumber < history.getHead()) {
+				continue;
+			}
+			if (slotNumber > lastSlot) {
+				return false;
+			}
+			while (history.getHead() < slotNumber) {
+				history.endSlot();
+			}
+			history.startSlot(unzigzag(getVarLong(b)));
+			int capacity = history.capacity();
+			int p = history.position(slotNumber);
+			for (int n = (int)getVarLong(b); n > 0; n--) {
+				int id = (int)getVarLong(b);
+				if (mds[id] == null) {
+					int slotPosition = b.position();
+					b.position(definitions[id] + RECORD_HEADER_SIZE);
+					getVarLong(b); // id
+					names[id] = getString(b);
+					instances[id] = getString(b);
+					// the encoded counters, the same for the instances of a collection
+					ByteBuffer counters = b.slice();
+					counters.limit(definitions[id] + RECORD_HEADER_SIZE - 1 + b.getInt(definitions[id]) - b.position());
+					SampleMetadata md = metadata.get(counters);
+					if (md == null) {
+						md = getMetadata(b);
+						metadata.put(counters, md);
+					}
+					mds[id] = md;
+					b.position(slotPosition);
+				}
+				ColumnarHistory.Row row = history.addRow(names[id], instances[id], mds[id]);
+				for (int c = 0; c < row.layout.width; c++) {
+					row.columns[c * capacity + p] = unzigzag(getVarLong(b));
+				}
+				for (int i = 0; i < row.layout.histograms; i++) {
+					int bytes = (int)getVarLong(b);
+					if (row.histograms[i][p] == null || row.histograms[i][p].length < bytes) {
+						row.histograms[i][p] = new byte[bytes];
+					}
+					b.get(row.histograms[i][p], 0, bytes);
+					row.histogramLengths[i][p] = bytes;
+				}
+			}
+			history.endSlot();
+		}
+		return true;
+	}
+
+	private static SampleMetadata getMetadata(ByteBuffer b) {
+		SampleMetadata md = new SampleMetadata();
+		md.incrementalCounterNames = getStrings(b);
+		md.instantaneousCounterNames = getStrings(b);
+		md.measureCounterNames = getStrings(b);
+		md.measureCounterMinMax = new boolean[md.measureCounterNames.length];
+		for (int i = 0; i < md.measureCounterMinMax.length; i++) {
+			md.measureCounterMinMax[i] = b.get() != 0;
+		}
+		md.histogramCounterNames = getStrings(b);
+		int hiRes = (int)getVarLong(b);
+		md.hiResCounterNames = new String[hiRes];
+		md.hiResCounterStates = new String[hiRes][];
+		md.hiResCounterExact = new boolean[hiRes];
+		md.hiResCounterPerThread = new boolean[hiRes];
+		for (int i = 0; i < hiRes; i++) {
+			md.hiResCounterNames[i] = getString(b);
+			md.hiResCounterStates[i] = getStrings(b);
+			int flags = b.get();
+			md.hiResCounterExact[i] = (flags & 1) != 0;
+			md.hiResCounterPerThread[i] = (flags & 2) != 0;
+		}
+		return md;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long z) {
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	/** 7 bits per byte, lowest first, the high bit set on all bytes but the last */
+	private static ByteBuffer putVarLong(ByteBuffer b, long v) {
+		if (b.remaining() < 10) {
+			b = grow(b, 10);
+		}
+		while ((v & ~0x7FL) != 0) {
+			b.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		b.put((byte)v);
+		return b;
+	}
+
+	private static long getVarLong(ByteBuffer b) {
+		long v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte x = b.get();
+			v |= (long)(x & 0x7F) << shift;
+			if (x >= 0) {
+				return v;
+			}
+		}
+	}
+
+	private static ByteBuffer putByte(ByteBuffer b, int v) {
+		if (!b.hasRemaining()) {
+			b = grow(b, 1);
+		}
+		return b.put((byte)v);
+	}
+
+	private static ByteBuffer putString(ByteBuffer b, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		b = putVarLong(b, bytes.length);
+		if (b.remaining() < bytes.length) {
+			b = grow(b, bytes.length);
+		}
+		return b.put(bytes);
+	}
+
+	private static ByteBuffer putStrings(ByteBuffer b, String[] strings) {
+		b = putVarLong(b, strings.length);
+		for (String s: strings) {
+			b = putString(b, s);
+		}
+		return b;
+	}
+
+	private static String getString(ByteBuffer b) {
+		byte[] bytes = new byte[(int)getVarLong(b)];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String[] getStrings(ByteBuffer b) {
+		String[] strings = new String[(int)getVarLong(b)];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = getString(b);
+		}
+		return strings;
+	}
+}
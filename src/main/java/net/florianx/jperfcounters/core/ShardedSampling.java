@@ -0,0 +1,88 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * Samples the CounterData of a slot on several threads: the CounterData
+ * are split in contiguous ranges, one per shard of the SampleCollector,
+ * sampled by the threads of a ForkJoinPool. Shards do not share anything
+ * while sampling; their samples are added to the slot by endSlot().
+ *
+ * Shards are not smaller than MIN_SHARD_SIZE CounterData, below that one
+ * thread is faster than handing the work over.
+ */
+final class ShardedSampling {
+
+	static final int MIN_SHARD_SIZE = 512;
+
+	private final SampleCollector sampleCollector;
+	private ForkJoinPool pool;
+	private SampleCollector.Shard[] shards = new SampleCollector.Shard[0];
+
+	ShardedSampling(SampleCollector sampleCollector) {
+		this.sampleCollector = sampleCollector;
+	}
+
+	/** samples cds into the current slot of the collector, on up to the given number of threads */
+	void sample(final CounterData[] cds, final PerfSampleable.SampleType sampleType, int threads)
+			throws InterruptedException, ExecutionException {
+		int n = Math.min(threads, cds.length / MIN_SHARD_SIZE);
+		if (n <= 1) {
+			for (CounterData cd: cds) {
+				cd.sample(sampleType, sampleCollector);
+			}
+			return;
+		}
+		if (pool == null || pool.getParallelism() != threads) {
+			shutdown();
+			pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					t.setName("jperfcounters-sampler-" + t.getPoolIndex());
+					t.setDaemon(true);
+					return t;
+				}
+			}, null, false);
+		}
+		while (shards.length < n) {
+			SampleCollector.Shard[] s = new SampleCollector.Shard[shards.length + 1];
+			System.arraycopy(shards, 0, s, 0, shards.length);
+			s[shards.length] = sampleCollector.createShard();
+			shards = s;
+		}
+		Future<?>[] tasks = new Future<?>[n];
+		for (int i = 0; i < n; i++) {
+			final int from = (int)((long)cds.length * i / n);
+			final int to = (int)((long)cds.length * (i + 1) / n);
+			final SampleCollector.Shard shard = shards[i];
+			tasks[i] = pool.submit(new Runnable() {
+				public void run() {
+					for (int j = from; j < to; j++) {
+						cds[j].sample(sampleType, shard);
+					}
+				}
+			});
+		}
+		ExecutionException failure = null;
+		for (Future<?> task: tasks) {
+			try {
+				task.get(); // wait for all, so that no shard is still filled after endSlot()
+			} catch (ExecutionException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Records the time elapsed between its start and its closing in a
+ * TimedCounter, see {@link TimedCounter#time()}.
+ *
+ * Stopwatches are recycled: each thread keeps the closed ones in a free
+ * list and time() takes one from it, so timing a region does not allocate
+ * once the thread timed as many nested regions as it will ever do, whether
+ * or not the JIT eliminates the Stopwatch. A Stopwatch must not be used
+ * once closed.
+ */
+public final class Stopwatch implements AutoCloseable {
+	private static final ThreadLocal<Stopwatch> free = new ThreadLocal<>();
+
+	private TimedCounter counter;
+	private long start;
+	private Stopwatch next; // in the free list
+
+	private Stopwatch() {
+	}
+
+	static Stopwatch start(TimedCounter counter) {
+		Stopwatch s = free.get();
+		if (s == null) {
+			s = new Stopwatch();
+		} else {
+			free.set(s.next);
+			s.next = null;
+		}
+		s.counter = counter;
+		s.start = counter.start();
+		return s;
+	}
+
+	public void close() {
+		if (counter != null) {
+			counter.stop(start);
+			counter = null;
+			next = free.get();
+			free.set(this);
+		}
+	}
+}
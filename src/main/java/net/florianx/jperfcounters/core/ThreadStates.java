@@ -0,0 +1,65 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State slots of the threads of a PER_THREAD hi-res counter. Each thread
+ * that registers gets a slot, on a cache line of its own, that it keeps
+ * until it closes its HiResThreadState; slots of closed handles are reused.
+ * Slots are allocated by chunks, which are never moved, so a handle keeps
+ * a direct reference to its chunk and updates do not look anything up.
+ *
+ * A slot holds what the global state of the counter would: the ordinal,
+ * or for EXACT counters the ordinal and the time it was entered, see
+ * CounterData. FREE marks the slots that are not in use.
+ */
+final class ThreadStates {
+
+	static final long FREE = -1;
+	static final int CHUNK_SLOTS = 64;
+
+	// never shrinks, replaced when growing
+	private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+	private volatile int size; // slots handed out so far, free or not
+	private final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<>();
+
+	/** returns a slot set to value */
+	synchronized int acquire(long value) {
+		Integer slot = free.poll();
+		if (slot == null) {
+			slot = size;
+			if (slot == chunks.length * CHUNK_SLOTS) {
+				AtomicLongArray chunk = new AtomicLongArray(CHUNK_SLOTS * CellLayout.CACHE_LINE_LONGS);
+				for (int i = 0; i < CHUNK_SLOTS; i++) {
+					chunk.set(i * CellLayout.CACHE_LINE_LONGS, FREE);
+				}
+				AtomicLongArray[] c = new AtomicLongArray[chunks.length + 1];
+				System.arraycopy(chunks, 0, c, 0, chunks.length);
+				c[chunks.length] = chunk;
+				chunks = c;
+			}
+			size = slot + 1;
+		}
+		chunk(slot).set(position(slot), value);
+		return slot;
+	}
+
+	/** the slot must already be set to FREE */
+	void release(int slot) {
+		free.add(slot);
+	}
+
+	int size() {
+		return size;
+	}
+
+	AtomicLongArray chunk(int slot) {
+		return chunks[slot / CHUNK_SLOTS];
+	}
+
+	/** position of the slot in its chunk */
+	static int position(int slot) {
+		return (slot % CHUNK_SLOTS) * CellLayout.CACHE_LINE_LONGS;
+	}
+}
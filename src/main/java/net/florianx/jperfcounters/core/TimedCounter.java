@@ -0,0 +1,27 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * A counter that can record durations, in the time unit it was created with
+ * (see {@link CounterDataBuilder#timeUnit(java.util.concurrent.TimeUnit)}).
+ * <pre>
+ * long start = counter.start();
+ * ...
+ * counter.stop(start);
+ * </pre>
+ * or, with try-with-resources:
+ * <pre>
+ * try (Stopwatch s = counter.time()) {
+ *     ...
+ * }
+ * </pre>
+ */
+public interface TimedCounter {
+	/** returns a token to give to {@link #stop(long)} */
+	long start();
+
+	/** records the time elapsed since start was called, returns it in the counter's time unit */
+	long stop(long start);
+
+	/** starts a Stopwatch that records the elapsed time when closed, without allocating */
+	Stopwatch time();
+}
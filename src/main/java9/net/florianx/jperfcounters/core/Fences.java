@@ -0,0 +1,26 @@
+package net.florianx.jperfcounters.core;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Memory fences around plain accesses, for the sequence locks of the
+ * exported counters, see {@link PerfDataWriter}, and of the history ring,
+ * see {@link ColumnarHistory}.
+ *
+ * Java 9+ implementation, selected through the multi-release jar.
+ */
+final class Fences {
+
+	private Fences() {
+	}
+
+	/** loads and stores before the fence are ordered before stores after it */
+	static void releaseFence() {
+		VarHandle.releaseFence();
+	}
+
+	/** loads before the fence are ordered before loads and stores after it */
+	static void acquireFence() {
+		VarHandle.acquireFence();
+	}
+}
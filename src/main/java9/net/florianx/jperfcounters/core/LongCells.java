@@ -0,0 +1,76 @@
+package net.florianx.jperfcounters.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Array of longs with the access modes needed by {@link CounterCells}.
+ *
+ * Java 9+ implementation, selected through the multi-release jar. Uses a
+ * plain long[] with VarHandle access modes, so that each operation only
+ * pays for the ordering it needs, and clear() is a plain loop the JIT can
+ * vectorize.
+ */
+final class LongCells {
+
+	private static final VarHandle AA = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final long[] cells;
+
+	LongCells(int size) {
+		cells = new long[size];
+	}
+
+	int length() {
+		return cells.length;
+	}
+
+	/** reads with (at least) acquire semantics */
+	long get(int i) {
+		return (long)AA.getAcquire(cells, i);
+	}
+
+	/** atomic add, with (at least) release semantics */
+	void add(int i, long delta) {
+		// getAndAddRelease would be enough, but HotSpot on x86 only intrinsifies
+		// the volatile form, the others are measurably slower
+		AA.getAndAdd(cells, i, delta);
+	}
+
+	/** add by the only thread writing the cell, with release semantics */
+	void addOrdered(int i, long delta) {
+		// we wrote the previous value ourselves, a plain read is enough
+		AA.setRelease(cells, i, cells[i] + delta);
+	}
+
+	void set(int i, long value) {
+		AA.setVolatile(cells, i, value);
+	}
+
+	/** store with release semantics */
+	void setOrdered(int i, long value) {
+		AA.setRelease(cells, i, value);
+	}
+
+	long getAndSet(int i, long value) {
+		return (long)AA.getAndSet(cells, i, value);
+	}
+
+	boolean compareAndSet(int i, long expect, long update) {
+		return AA.compareAndSet(cells, i, expect, update);
+	}
+
+	/**
+	 * Sets all cells to zero. Writers must only see the result through a
+	 * later volatile write, such as the swap of CounterData.current.
+	 */
+	void clear() {
+		Arrays.fill(cells, 0);
+	}
+
+	/** sets all cells to value, same visibility as clear() */
+	void fill(long value) {
+		Arrays.fill(cells, value);
+	}
+}
@@ -0,0 +1,68 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal harness for the *Benchmark classes of this directory. They are
+ * plain main() programs, not run by the unit tests: warm up, then count
+ * operations done by a number of threads during a fixed time.
+ */
+class Bench {
+
+	interface Task {
+		/** runs one batch of operations on behalf of thread number t, returns the number of operations */
+		long run(int t);
+	}
+
+	static int threads(String[] args, int pos) {
+		if (args.length > pos) {
+			return Integer.parseInt(args[pos]);
+		}
+		return Math.max(2, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** returns operations per second, over all threads */
+	static double measure(final int threads, long millis, final Task task) throws InterruptedException {
+		run(threads, millis / 2, task); // warm up
+		return run(threads, millis, task);
+	}
+
+	private static double run(final int threads, long millis, final Task task) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] t = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int n = i;
+			t[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long cnt = 0;
+					while (!stop.get()) {
+						cnt += task.run(n);
+					}
+					ops.addAndGet(cnt);
+				}
+			};
+			t[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread th: t) {
+			th.join();
+		}
+		return ops.get() * 1e9 / (System.nanoTime() - begin);
+	}
+
+	static void report(String name, double opsPerSec) {
+		System.out.println(String.format("%-40s %,15.0f ops/s", name, opsPerSec));
+	}
+}
@@ -0,0 +1,1062 @@
+package net.florianx.jperfcounters.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives sampling by hand, without the CounterMgr scheduler, and checks
+ * the values that end up in the SampleCollector.
+ */
+public class CounterDataTest extends TestCase {
+
+	private CounterMgr counterMgr;
+	private SampleCollector collector;
+
+	public CounterDataTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		counterMgr = new CounterMgr(); // not started
+		collector = new SampleCollector(16);
+	}
+
+	private JsonObject sample(CounterData cd) {
+		collector.startSlot();
+		cd.sample(PerfSampleable.SampleType.Normal, collector);
+		collector.endSlot();
+		String json = collector.toJson(collector.getLastSlot(), 1);
+		return new JsonParser().parse(json).getAsJsonObject()
+				.getAsJsonObject("counters")
+				.getAsJsonObject(cd.getName())
+				.getAsJsonObject(cd.getInstance());
+	}
+
+	private static long last(JsonObject counters, String counter, String attribute) {
+		return counters.getAsJsonObject(counter).getAsJsonArray(attribute).get(0).getAsLong();
+	}
+
+	private static void runThreads(int count, final Runnable r) throws InterruptedException {
+		Thread[] threads = new Thread[count];
+		for (int i = 0; i < count; i++) {
+			threads[i] = new Thread(r);
+			threads[i].start();
+		}
+		for (Thread t: threads) {
+			t.join();
+		}
+	}
+
+	/** run against the multi-release jar (see the pom), the Java 9 classes are used */
+	public void testMultiReleaseJar() throws Exception {
+		if (!Boolean.getBoolean("jperfcounters.testJar")) {
+			return; // against target/classes
+		}
+		assertTrue(LongCells.class.getProtectionDomain().getCodeSource().getLocation().getPath().endsWith(".jar"));
+		// fields only the Java 7 versions have
+		try {
+			LongCells.class.getDeclaredField("cells").getType().asSubclass(long[].class);
+		} catch (ClassCastException e) {
+			fail("Java 7 LongCells");
+		}
+		try {
+			Fences.class.getDeclaredField("fence");
+			fail("Java 7 Fences");
+		} catch (NoSuchFieldException e) {
+			// expected
+		}
+	}
+
+	public void testStripedCountersFoldIntoSample() throws InterruptedException {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Striped", "main");
+		final IncrementalCounter plain = builder.createIncrementalCounter("plain");
+		final IncrementalCounter striped = builder.createIncrementalCounter("striped", CounterOption.STRIPED);
+		final MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.STRIPED);
+		CounterData cd = builder.create();
+
+		runThreads(4, new Runnable() {
+			public void run() {
+				for (int i = 0; i < 10000; i++) {
+					plain.inc();
+					striped.inc();
+					measure.recordValue(3);
+				}
+			}
+		});
+
+		JsonObject counters = sample(cd);
+		assertEquals(40000, last(counters, "plain", "values"));
+		assertEquals(40000, last(counters, "striped", "values"));
+		assertEquals(40000, last(counters, "measure", "counts"));
+		assertEquals(120000, last(counters, "measure", "values"));
+
+		striped.add(5);
+		counters = sample(cd);
+		assertEquals(5, last(counters, "striped", "values"));
+		assertEquals(40005, last(counters, "striped", "valuesCumulative"));
+		assertEquals(0, last(counters, "measure", "counts"));
+	}
+
+	public void testRelaxedCountersTakeDeltaSinceLastSample() {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Relaxed", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc", CounterOption.RELAXED);
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst", CounterOption.RELAXED);
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.RELAXED, CounterOption.STRIPED);
+		CounterData cd = builder.create();
+
+		inc.add(10);
+		inst.set(7);
+		measure.recordValue(4);
+		JsonObject counters = sample(cd);
+		assertEquals(10, last(counters, "inc", "values"));
+		assertEquals(7, last(counters, "inst", "values"));
+		assertEquals(7, last(counters, "inst", "delta"));
+		assertEquals(1, last(counters, "measure", "counts"));
+
+		inc.inc();
+		inst.dec();
+		CounterData.Setter setter = new CounterData.Setter(cd);
+		setter.prepare();
+		setter.recordValueWithCount(measure, 9, 3);
+		setter.terminate();
+		counters = sample(cd);
+		assertEquals(1, last(counters, "inc", "values"));
+		assertEquals(11, last(counters, "inc", "valuesCumulative"));
+		assertEquals(6, last(counters, "inst", "values"));
+		assertEquals(-1, last(counters, "inst", "delta"));
+		assertEquals(3, last(counters, "measure", "counts"));
+		assertEquals(13, last(counters, "measure", "valuesCumulative"));
+	}
+
+	public void testSingleWriter() {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("SingleWriter", "main").singleWriter();
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst");
+		MeasureCounter measure = builder.createMeasureCounter("measure");
+		CounterData cd = builder.create();
+
+		inc.inc();
+		inc.add(2);
+		inst.set(5);
+		inst.inc();
+		measure.recordValueWithCount(30, 2);
+		JsonObject counters = sample(cd);
+		assertEquals(3, last(counters, "inc", "values"));
+		assertEquals(6, last(counters, "inst", "values"));
+		assertEquals(2, last(counters, "measure", "counts"));
+		assertEquals(30, last(counters, "measure", "values"));
+
+		counters = sample(cd);
+		assertEquals(0, last(counters, "inc", "values"));
+		assertEquals(6, last(counters, "inst", "values"));
+	}
+
+	public void testInstancesLeaveHistory() {
+		collector = new SampleCollector(2);
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("History", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		CounterData cd = builder.create();
+		builder = counterMgr.createCounterBuilder("History", "other");
+		builder.createIncrementalCounter("inc");
+		CounterData other = builder.create();
+
+		for (int i = 1; i <= 6; i++) {
+			inc.add(i);
+			collector.startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, collector);
+			if (i <= 3) {
+				other.sample(PerfSampleable.SampleType.Normal, collector);
+			}
+			collector.endSlot();
+
+			JsonObject counters = new JsonParser().parse(collector.toJson(collector.getLastSlot(), 1))
+					.getAsJsonObject().getAsJsonObject("counters").getAsJsonObject("History");
+			assertEquals(i, last(counters.getAsJsonObject("main"), "inc", "values"));
+			assertEquals(i * (i + 1) / 2, last(counters.getAsJsonObject("main"), "inc", "valuesCumulative"));
+			// instances only show in the slots they were sampled in
+			assertEquals(i <= 3, counters.has("other"));
+			// and stay in the history of 2 slots one more slot
+			counters = new JsonParser().parse(collector.toJson(collector.getLastSlot(), 2))
+					.getAsJsonObject().getAsJsonObject("counters").getAsJsonObject("History");
+			assertEquals(i <= 4, counters.has("other"));
+			if (i == 4) {
+				assertTrue(counters.getAsJsonObject("other").getAsJsonObject("inc").getAsJsonArray("values")
+						.get(0).isJsonNull());
+			}
+		}
+	}
+
+	public void testCompressedHistory() {
+		final SampleCollector plain = new SampleCollector(300);
+		final SampleCollector compressed = new SampleCollector(300, true);
+		SampleSink both = new SampleSink() {
+			@Override
+			public void add(String name, String instance, SampleData sample) {
+				plain.add(name, instance, sample);
+				compressed.add(name, instance, sample);
+			}
+		};
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Compressed", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst");
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.MIN_MAX);
+		CounterData cd = builder.create();
+		builder = counterMgr.createCounterBuilder("Compressed", "other");
+		IncrementalCounter otherInc = builder.createIncrementalCounter("inc");
+		CounterData other = builder.create();
+
+		Random random = new Random(1);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 700; i++) {
+			inc.add(i % 7 == 0 ? random.nextInt(5000) : 3); // small and larger variations
+			inst.add(i % 100 == 0 ? Long.MAX_VALUE / 3 : -random.nextInt(100));
+			measure.recordValue(random.nextLong() >> random.nextInt(64));
+			otherInc.inc();
+			plain.startSlot();
+			compressed.startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, both);
+			if (i % 50 < 20) { // missing from parts of blocks
+				other.sample(PerfSampleable.SampleType.Normal, both);
+			}
+			plain.endSlot();
+			compressed.endSlot();
+
+			if (i % 97 == 0 || i == 699) {
+				for (int entries: new int[] { 1, 130, 300 }) {
+					JsonObject p = new JsonParser().parse(plain.toJson(plain.getLastSlot(), entries)).getAsJsonObject();
+					JsonObject c = new JsonParser().parse(compressed.toJson(compressed.getLastSlot(), entries))
+							.getAsJsonObject();
+					assertEquals(p.get("slots"), c.get("slots"));
+					assertEquals(p.get("counters"), c.get("counters"));
+					JsonArray timestamps = c.getAsJsonArray("timestamps");
+					for (int t = 0; t < timestamps.size(); t++) {
+						assertTrue(timestamps.get(t).getAsLong() >= start);
+						assertTrue(t == 0 || timestamps.get(t).getAsLong() <= timestamps.get(t - 1).getAsLong());
+					}
+				}
+			}
+		}
+		// older slots than the history are dropped
+		JsonObject c = new JsonParser().parse(compressed.toJson(compressed.getLastSlot(), 1000)).getAsJsonObject();
+		assertEquals(300, c.getAsJsonArray("slots").size());
+	}
+
+	public void testReaderOverrunByTheWriter() {
+		for (boolean compressed: new boolean[] { false, true }) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Overrun", "compressed " + compressed);
+			IncrementalCounter inc = builder.createIncrementalCounter("inc");
+			CounterData cd = builder.create();
+			final ColumnarHistory history = new ColumnarHistory(compressed ? 2 * CompressedBlock.SLOTS : 4, compressed);
+			SampleSink sink = new SampleSink() {
+				@Override
+				public void add(String name, String instance, SampleData sample) {
+					history.add(name, instance, sample);
+				}
+			};
+			int slots = compressed ? 2 * CompressedBlock.SLOTS : 4;
+			for (int i = 0; i < slots; i++) {
+				inc.inc();
+				history.startSlot(i);
+				cd.sample(PerfSampleable.SampleType.Normal, sink);
+				history.endSlot();
+			}
+			ColumnarHistory.Row row = history.getRows("Overrun").get(0);
+			boolean[] present = new boolean[4];
+			assertEquals(4, history.readSlots(row, slots - 1, 4, present));
+			// the writer reuses all the positions of the ring before the reader reads the values
+			for (int i = 0; i < history.capacity(); i++) {
+				inc.inc();
+				history.startSlot(slots + i);
+				cd.sample(PerfSampleable.SampleType.Normal, sink);
+				history.endSlot();
+			}
+			long[] values = new long[4];
+			history.read(row, row.layout.incremental[0] + HistoryLayout.INC_CUMULATIVE, slots - 1, 4, values, present);
+			for (int i = 0; i < 4; i++) {
+				if (compressed) { // read from the blocks
+					assertTrue(present[i]);
+					assertEquals(slots - i, values[i]);
+				} else { // gone from the history
+					assertFalse(present[i]);
+				}
+			}
+		}
+	}
+
+	public void testRollups() throws Exception {
+		collector = new SampleCollector(16);
+		collector.addRollup(4, 10);
+		collector.addRollup(3, 10);
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Rollup", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst");
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.MIN_MAX);
+		HistogramCounter histogram = builder.createHistogramCounter("histogram", 1, 1000, 2);
+		CounterData cd = builder.create();
+
+		for (int i = 0; i < 26; i++) {
+			inc.add(i);
+			inst.add(i % 2 == 0 ? i : -i / 2);
+			if (i % 4 != 3) { // no value in the last slot of each minute
+				measure.recordValue(i);
+			}
+			histogram.recordValue(i + 1);
+			collector.startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, collector);
+			collector.endSlot();
+		}
+
+		// 24 slots in 6 points of 4 slots, the 2 last slots are not in a complete point
+		JsonObject json = new JsonParser().parse(collector.toJson(collector.getLastSlot(), 24, 6)).getAsJsonObject();
+		assertEquals(4, json.get("slotsPerPoint").getAsLong());
+		assertEquals(20, json.getAsJsonArray("slots").get(0).getAsLong());
+		assertEquals(6, json.getAsJsonArray("slots").size());
+		JsonObject counters = json.getAsJsonObject("counters").getAsJsonObject("Rollup").getAsJsonObject("main");
+		assertEquals(20 + 21 + 22 + 23, last(counters, "inc", "values"));
+		assertEquals(23 * 24 / 2, last(counters, "inc", "valuesCumulative"));
+		// 65 + 20, - 10, + 22, - 11
+		assertEquals(66, last(counters, "inst", "values"));
+		assertEquals(55, last(counters, "inst", "min"));
+		assertEquals(77, last(counters, "inst", "max"));
+		assertEquals(20 - 10 + 22 - 11, last(counters, "inst", "delta"));
+		assertEquals(20 + 21 + 22, last(counters, "measure", "values"));
+		assertEquals(3, last(counters, "measure", "counts"));
+		assertEquals(20, last(counters, "measure", "min"));
+		assertEquals(22, last(counters, "measure", "max"));
+		assertEquals(22, last(counters, "measure", "last"));
+
+		// the same slots in 2 points of 12 slots
+		json = new JsonParser().parse(collector.toJson(collector.getLastSlot(), 24, 2)).getAsJsonObject();
+		assertEquals(12, json.get("slotsPerPoint").getAsLong());
+		assertEquals(12, json.getAsJsonArray("slots").get(0).getAsLong());
+		counters = json.getAsJsonObject("counters").getAsJsonObject("Rollup").getAsJsonObject("main");
+		assertEquals((12 + 23) * 6, last(counters, "inc", "values"));
+		assertEquals(23 * 24 / 2, last(counters, "inc", "valuesCumulative"));
+		assertEquals(12 + 13 + 14 + 16 + 17 + 18 + 20 + 21 + 22, last(counters, "measure", "values"));
+		assertEquals(9, last(counters, "measure", "counts"));
+		assertEquals(12, last(counters, "measure", "min"));
+		assertEquals(22, last(counters, "measure", "max"));
+
+		// more points than the tiers have
+		json = new JsonParser().parse(collector.toJson(collector.getLastSlot(), 24, 7)).getAsJsonObject();
+		assertEquals(1, json.get("slotsPerPoint").getAsLong());
+		assertEquals(16, json.getAsJsonArray("slots").size());
+
+		// streamed as getAsJson() returns it
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Reporter(collector).writeJson(collector.getLastSlot(), 24, 2, out);
+		assertEquals(collector.toJson(collector.getLastSlot(), 24, 2), out.toString("UTF-8"));
+
+		// histograms of the slots are merged
+		final ColumnarHistory history = new ColumnarHistory(4);
+		ColumnarHistory rollup = history.setRollup(2, 4);
+		for (int i = 0; i < 2; i++) {
+			histogram.recordValue(100);
+			history.startSlot(i);
+			cd.sample(PerfSampleable.SampleType.Normal, new SampleSink() {
+				@Override
+				public void add(String name, String instance, SampleData sample) {
+					history.add(name, instance, sample);
+				}
+			});
+			history.endSlot();
+		}
+		ColumnarHistory.Row row = rollup.getRows("Rollup").get(0);
+		Histogram h = Histogram.decodeFromCompressedByteBuffer(
+				ByteBuffer.wrap(row.histograms[0][0], 0, row.histogramLengths[0][0]), 0);
+		assertEquals(2, h.getTotalCount());
+		assertEquals(1, rollup.getHead());
+	}
+
+	public void testSetterRecordsMeasureValues() {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Setter", "main");
+		MeasureCounter measure = builder.createMeasureCounter("measure");
+		CounterData cd = builder.create();
+
+		CounterData.Setter setter = new CounterData.Setter(cd);
+		setter.prepare();
+		setter.recordValue(measure, 7);
+		setter.recordValueWithCount(measure, 10, 2);
+		setter.terminate();
+
+		JsonObject counters = sample(cd);
+		assertEquals(3, last(counters, "measure", "counts"));
+		assertEquals(17, last(counters, "measure", "values"));
+	}
+
+	public void testAffinityGroupsUseSeparateLines() {
+		boolean[] striped = new boolean[4];
+		CellLayout layout = new CellLayout(striped, new String[] { "a", null, "b", "a" }, false);
+		int line = CellLayout.CACHE_LINE_LONGS;
+		assertEquals(0, layout.firstCell(1));
+		assertEquals(layout.firstCell(0) / line, layout.firstCell(3) / line);
+		assertTrue(layout.firstCell(0) / line != layout.firstCell(2) / line);
+		assertTrue(layout.firstCell(0) >= line);
+
+		layout = new CellLayout(striped, new String[4], true);
+		for (int i = 1; i < 4; i++) {
+			assertEquals(line, layout.firstCell(i) - layout.firstCell(i - 1));
+		}
+	}
+
+	public void testBufferedSetterPublishesOnRequest() {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Buffered", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst");
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.RELAXED);
+		CounterData cd = builder.create();
+
+		CounterData.BufferedSetter setter = new CounterData.BufferedSetter(cd);
+		setter.prepare();
+		setter.inc(inc);
+		setter.add(inc, 4);
+		setter.set(inst, 10);
+		setter.dec(inst);
+		setter.recordValue(measure, 8);
+		setter.terminate();
+		JsonObject counters = sample(cd);
+		assertEquals(0, last(counters, "inc", "values"));
+
+		cd.requestFlush();
+		setter.prepare();
+		setter.inc(inc);
+		setter.terminate();
+		counters = sample(cd);
+		assertEquals(6, last(counters, "inc", "values"));
+		assertEquals(9, last(counters, "inst", "values"));
+		assertEquals(1, last(counters, "measure", "counts"));
+		assertEquals(8, last(counters, "measure", "values"));
+
+		setter.add(inc, 2);
+		setter.flush();
+		counters = sample(cd);
+		assertEquals(2, last(counters, "inc", "values"));
+	}
+
+	public void testStripedHistogramsAreMerged() throws Exception {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Histograms", "main");
+		final HistogramCounter striped = builder.createHistogramCounter("striped", CounterOption.STRIPED);
+		final HistogramCounter resized = builder.createHistogramCounter("resized", 1, 100, 2, CounterOption.AUTO_RESIZE);
+		CounterData cd = builder.create();
+
+		runThreads(4, new Runnable() {
+			public void run() {
+				for (int i = 1; i <= 1000; i++) {
+					striped.recordValue(i);
+				}
+			}
+		});
+		resized.recordValue(1000000);
+
+		final SampleData[] samples = new SampleData[1];
+		collector = new SampleCollector(16) {
+			public void add(String name, String instance, SampleData sample) {
+				samples[0] = sample;
+				super.add(name, instance, sample);
+			}
+		};
+		sample(cd);
+		Histogram h = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(samples[0].histograms[0]), 0);
+		assertEquals(4000, h.getTotalCount());
+		assertEquals(1000, h.getMaxValue(), 1000 / 100);
+		h = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(samples[0].histograms[1]), 0);
+		assertEquals(1, h.getTotalCount());
+
+		striped.recordValue(5);
+		sample(cd);
+		h = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(samples[0].histograms[0]), 0);
+		assertEquals(1, h.getTotalCount());
+	}
+
+	public void testPackedHistogramsAreAllocatedOnRecord() throws Exception {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Packed", "main");
+		HistogramCounter packed = builder.createHistogramCounter("packed", CounterOption.PACKED);
+		CounterData cd = builder.create();
+
+		final SampleData[] samples = new SampleData[1];
+		collector = new SampleCollector(16) {
+			public void add(String name, String instance, SampleData sample) {
+				samples[0] = sample;
+				super.add(name, instance, sample);
+			}
+		};
+		sample(cd);
+		assertEquals(0, samples[0].histogramLengths[0]);
+
+		packed.recordValue(100);
+		packed.recordValue(200);
+		sample(cd);
+		Histogram h = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(samples[0].histograms[0]), 0);
+		assertEquals(2, h.getTotalCount());
+
+		for (int i = 0; i < 3; i++) {
+			sample(cd);
+		}
+		assertEquals(0, samples[0].histogramLengths[0]);
+	}
+
+	public void testTimedRegions() throws InterruptedException {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Timed", "main").timeUnit(TimeUnit.MICROSECONDS);
+		MeasureCounter measure = builder.createMeasureCounter("measure");
+		CounterData cd = builder.create();
+
+		long start = measure.start();
+		Thread.sleep(2);
+		long elapsed = measure.stop(start);
+		assertTrue(elapsed >= 2000);
+		long nested;
+		try (Stopwatch outer = measure.time()) {
+			try (Stopwatch inner = measure.time()) {
+				nested = measure.stop(measure.start());
+			}
+		}
+		JsonObject counters = sample(cd);
+		assertEquals(4, last(counters, "measure", "counts"));
+		assertTrue(last(counters, "measure", "values") >= elapsed + nested);
+	}
+
+	public void testMinMaxLast() {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("MinMax", "main");
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.MIN_MAX, CounterOption.STRIPED);
+		MeasureCounter relaxed = builder.createMeasureCounter("relaxed", CounterOption.MIN_MAX, CounterOption.RELAXED);
+		MeasureCounter plain = builder.createMeasureCounter("plain");
+		CounterData cd = builder.create();
+
+		for (long v: new long[] { 5, -3, 12, 7 }) {
+			measure.recordValue(v);
+			relaxed.recordValue(v * 10);
+		}
+		CounterData.BufferedSetter setter = new CounterData.BufferedSetter(cd);
+		setter.recordValue(measure, 20);
+		setter.recordValue(measure, 1);
+		setter.flush();
+		JsonObject counters = sample(cd);
+		assertEquals(-3, last(counters, "measure", "min"));
+		assertEquals(20, last(counters, "measure", "max"));
+		assertEquals(1, last(counters, "measure", "last"));
+		assertEquals(-30, last(counters, "relaxed", "min"));
+		assertEquals(120, last(counters, "relaxed", "max"));
+		assertEquals(70, last(counters, "relaxed", "last"));
+		assertFalse(counters.getAsJsonObject("plain").has("min"));
+
+		relaxed.recordValueWithCount(90, 3);
+		counters = sample(cd);
+		assertTrue(counters.getAsJsonObject("measure").getAsJsonArray("min").get(0).isJsonNull());
+		assertEquals(30, last(counters, "relaxed", "min"));
+		assertEquals(30, last(counters, "relaxed", "max"));
+	}
+
+	public void testSamplerThreads() throws InterruptedException {
+		CounterMgr mgr = new CounterMgr();
+		CounterDataBuilder builder = mgr.createCounterBuilder("Sampled", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		builder.create();
+		mgr.init();
+		try {
+			inc.add(3);
+			Reporter reporter = mgr.createReporter();
+			long deadline = System.currentTimeMillis() + 5000;
+			long total = 0;
+			while (total < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+				JsonObject counters = new JsonParser().parse(reporter.getAsJson(reporter.getLast(), 1))
+						.getAsJsonObject().getAsJsonObject("counters");
+				if (counters.has("Sampled")) {
+					JsonObject sampler = counters.getAsJsonObject(CounterMgr.SAMPLER_NAME)
+							.getAsJsonObject(CounterMgr.SAMPLER_INSTANCE);
+					assertTrue(sampler.has("slotOverruns"));
+					assertTrue(sampler.has("sampleDuration"));
+					total = last(counters.getAsJsonObject("Sampled").getAsJsonObject("main"), "inc", "valuesCumulative");
+				}
+			}
+			assertEquals(3, total);
+		} finally {
+			mgr.shutdown();
+		}
+		try {
+			mgr.init();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testSamplingReconfiguredAtRuntime() throws InterruptedException {
+		CounterMgr mgr = new CounterMgr();
+		mgr.init();
+		try {
+			Reporter reporter = mgr.createReporter();
+			mgr.setSamplingRate(100, TimeUnit.MILLISECONDS);
+			mgr.setHiResSamplingsPerPeriod(4);
+			// the current slot (started with a 1 second period) ends right away
+			long first = reporter.getLast();
+			Thread.sleep(1000);
+			assertTrue(reporter.getLast() - first >= 5);
+			assertEquals(25, mgr.getSampleFreqHiResMillis());
+
+			// any tick is over budget: down to one tick per slot
+			mgr.setHiResCpuBudget(1e-12);
+			long deadline = System.currentTimeMillis() + 5000;
+			long period = 0;
+			while (period != 100000 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+				JsonObject counters = new JsonParser().parse(reporter.getAsJson(reporter.getLast(), 1))
+						.getAsJsonObject().getAsJsonObject("counters");
+				period = last(counters.getAsJsonObject(CounterMgr.SAMPLER_NAME)
+						.getAsJsonObject(CounterMgr.SAMPLER_INSTANCE), "hiResPeriod", "values");
+			}
+			assertEquals(100000, period);
+		} finally {
+			mgr.shutdown();
+		}
+	}
+
+	public void testHiResTicksOnlyVisitHiResCounterData() {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("HiRes", "with");
+		builder.createHiResCounter("state", CounterOption.values());
+		CounterData with = builder.create();
+		builder = counterMgr.createCounterBuilder("HiRes", "without");
+		builder.createIncrementalCounter("inc");
+		CounterData without = builder.create();
+
+		assertEquals(2, counterMgr.getSampleables().length);
+		assertEquals(1, counterMgr.getHiResSampleables().length);
+		assertSame(with, counterMgr.getHiResSampleables()[0]);
+		counterMgr.unregisterCounterData(with);
+		assertEquals(0, counterMgr.getHiResSampleables().length);
+		assertSame(without, counterMgr.getSampleables()[0]);
+	}
+
+	public void testTemplateInstancesShareDefinitions() {
+		CounterDataBuilder builder = counterMgr.createTemplateBuilder("Template");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.MIN_MAX);
+		CounterTemplate template = builder.createTemplate();
+		CounterData a = template.createInstance("a");
+		CounterData b = template.createInstance("b");
+		assertSame(a.getSampleMetadata(), b.getSampleMetadata());
+		assertSame(a.incrementalCounters, b.incrementalCounters);
+
+		a.inc(inc);
+		a.recordValue(measure, 5);
+		b.add(inc, 3);
+		CounterData.Setter setter = new CounterData.Setter(b);
+		setter.prepare();
+		setter.recordValue(measure, 7);
+		setter.terminate();
+		JsonObject counters = sample(a);
+		assertEquals(1, last(counters, "inc", "values"));
+		assertEquals(5, last(counters, "measure", "max"));
+		counters = sample(b);
+		assertEquals(3, last(counters, "inc", "values"));
+		assertEquals(7, last(counters, "measure", "max"));
+
+		try {
+			builder.create();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			inc.inc(); // not bound to an instance
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			measure.time();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testShardedSampling() throws Exception {
+		collector = new SampleCollector(2);
+		int instances = ShardedSampling.MIN_SHARD_SIZE * 4;
+		CounterDataBuilder builder = counterMgr.createTemplateBuilder("Sharded");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		CounterTemplate template = builder.createTemplate();
+		CounterData[] cds = new CounterData[instances];
+		for (int i = 0; i < instances; i++) {
+			cds[i] = template.createInstance("s" + i);
+		}
+		ShardedSampling sharded = new ShardedSampling(collector);
+		try {
+			for (int s = 1; s <= 4; s++) { // the ring positions are reused from the fourth slot
+				for (int i = 0; i < instances; i++) {
+					cds[i].add(inc, i * s);
+				}
+				collector.startSlot();
+				sharded.sample(cds, PerfSampleable.SampleType.Normal, 4);
+				collector.endSlot();
+				JsonObject counters = new JsonParser().parse(collector.toJson(collector.getLastSlot(), 1))
+						.getAsJsonObject().getAsJsonObject("counters").getAsJsonObject("Sharded");
+				assertEquals(instances, counters.entrySet().size());
+				for (int i = 0; i < instances; i += 97) {
+					assertEquals(i * s, last(counters.getAsJsonObject("s" + i), "inc", "values"));
+				}
+			}
+		} finally {
+			sharded.shutdown();
+		}
+	}
+
+	public void testConcurrentRegistrations() throws InterruptedException {
+		runThreads(4, new Runnable() {
+			public void run() {
+				String prefix = Thread.currentThread().getName();
+				for (int i = 0; i < 1000; i++) {
+					CounterDataBuilder builder = counterMgr.createCounterBuilder("Churn", prefix + i);
+					builder.createIncrementalCounter("inc");
+					CounterData cd = builder.create();
+					if (i % 2 == 0) {
+						counterMgr.unregisterCounterData(cd);
+					}
+				}
+			}
+		});
+		assertEquals(2000, counterMgr.getSampleables().length);
+
+		CounterData cd = counterMgr.createCounterBuilder("Churn", "again").create();
+		try {
+			counterMgr.createCounterBuilder("Churn", "again").create();
+			fail();
+		} catch (InternalError e) {
+			// expected
+		}
+		counterMgr.unregisterCounterData(cd);
+		counterMgr.createCounterBuilder("Churn", "again").create();
+		assertEquals(2001, counterMgr.getSampleables().length);
+	}
+
+	public void testExactHiResCounter() throws Exception {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Exact", "main");
+		HiResCounter<CounterOption> exact = builder.createHiResCounter("exact", CounterOption.values(), CounterOption.EXACT);
+		CounterData cd = builder.create();
+		assertFalse(cd.hasSampledHiResCounters());
+
+		long start = System.nanoTime();
+		sample(cd); // starts from the sample, state 0 (STRIPED)
+		exact.setState(CounterOption.RELAXED);
+		Thread.sleep(20);
+		exact.setState(CounterOption.STRIPED);
+		JsonObject counters = sample(cd);
+		long max = System.nanoTime() - start;
+		JsonArray nanos = counters.getAsJsonObject("exact").getAsJsonArray("nanos").get(0).getAsJsonArray();
+		long relaxed = nanos.get(CounterOption.RELAXED.ordinal()).getAsLong();
+		assertTrue(relaxed >= 20000000L);
+		assertTrue(relaxed + nanos.get(CounterOption.STRIPED.ordinal()).getAsLong() <= max);
+
+		// still STRIPED for the whole slot
+		Thread.sleep(5);
+		counters = sample(cd);
+		nanos = counters.getAsJsonObject("exact").getAsJsonArray("nanos").get(0).getAsJsonArray();
+		assertTrue(nanos.get(CounterOption.STRIPED.ordinal()).getAsLong() >= 5000000L);
+		assertEquals(0, nanos.get(CounterOption.RELAXED.ordinal()).getAsLong());
+		assertEquals(100.0, counters.getAsJsonObject("exact").getAsJsonArray("time").get(0).getAsJsonArray()
+				.get(CounterOption.STRIPED.ordinal()).getAsDouble(), 0.001);
+
+		// the timestamps wrap during the slot
+		builder = counterMgr.createCounterBuilder("Exact", "wrap");
+		exact = builder.createHiResCounter("exact", CounterOption.values(), CounterOption.EXACT);
+		cd = builder.create();
+		Field epoch = CounterData.class.getDeclaredField("hiResEpoch");
+		epoch.setAccessible(true);
+		epoch.setLong(cd, System.nanoTime() - CounterData.EXACT_TIME_MASK + 10000000L);
+		sample(cd);
+		exact.setState(CounterOption.RELAXED);
+		Thread.sleep(20);
+		exact.setState(CounterOption.STRIPED);
+		nanos = sample(cd).getAsJsonObject("exact").getAsJsonArray("nanos").get(0).getAsJsonArray();
+		assertTrue(nanos.get(CounterOption.RELAXED.ordinal()).getAsLong() >= 20000000L);
+		assertTrue(nanos.get(CounterOption.RELAXED.ordinal()).getAsLong() < 1000000000L);
+	}
+
+	public void testPerThreadHiResCounter() throws InterruptedException {
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("PerThread", "main");
+		HiResCounter<CounterOption> ticked = builder.createHiResCounter("ticked", CounterOption.values(),
+				CounterOption.PER_THREAD);
+		HiResCounter<CounterOption> exact = builder.createHiResCounter("exact", CounterOption.values(),
+				CounterOption.PER_THREAD, CounterOption.EXACT);
+		CounterData cd = builder.create();
+		try {
+			ticked.setState(CounterOption.STRIPED);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		sample(cd);
+		List<HiResThreadState<CounterOption>> handles = new ArrayList<>();
+		for (int i = 0; i < 100; i++) { // more than a chunk
+			handles.add(ticked.register(i < 30 ? CounterOption.RELAXED : CounterOption.STRIPED));
+			handles.add(exact.register(CounterOption.RELAXED));
+		}
+		handles.get(1).setState(CounterOption.STRIPED);
+		cd.sampleHiRes();
+		handles.get(0).close();
+		handles.get(3).close();
+		cd.sampleHiRes();
+		JsonObject counters = sample(cd);
+
+		JsonArray samples = counters.getAsJsonObject("ticked").getAsJsonArray("samples").get(0).getAsJsonArray();
+		assertEquals(30 + 29, samples.get(CounterOption.RELAXED.ordinal()).getAsLong());
+		assertEquals(70 + 70, samples.get(CounterOption.STRIPED.ordinal()).getAsLong());
+		JsonArray threads = counters.getAsJsonObject("ticked").getAsJsonArray("threads").get(0).getAsJsonArray();
+		assertEquals(29.5, threads.get(CounterOption.RELAXED.ordinal()).getAsDouble(), 0.001);
+
+		// 98 threads RELAXED for the whole slot, one STRIPED, one gone
+		Thread.sleep(200); // long enough for the time spent sampling to be negligible
+		counters = sample(cd);
+		threads = counters.getAsJsonObject("exact").getAsJsonArray("threads").get(0).getAsJsonArray();
+		// a pause while closing the states of the 100 slots still skews them a little
+		assertEquals(98.0, threads.get(CounterOption.RELAXED.ordinal()).getAsDouble(), 2.0);
+		assertEquals(1.0, threads.get(CounterOption.STRIPED.ordinal()).getAsDouble(), 0.1);
+
+		// slots of closed handles are reused
+		ThreadStates states = new ThreadStates();
+		assertEquals(0, states.acquire(1));
+		assertEquals(1, states.acquire(1));
+		states.release(0);
+		assertEquals(0, states.acquire(2));
+		assertEquals(2, states.size());
+	}
+
+	public void testPersistedHistory() throws IOException {
+		File dir = File.createTempFile("jperfcounters", ".history");
+		dir.delete();
+		final SampleCollector reference = new SampleCollector(100);
+		final SampleCollector[] persisted = { new SampleCollector(8) };
+		persisted[0].setStore(new SegmentStore(dir, 1024, 1 << 20, TimeUnit.DAYS.toMillis(1), 0));
+		SampleSink both = new SampleSink() {
+			@Override
+			public void add(String name, String instance, SampleData sample) {
+				reference.add(name, instance, sample);
+				persisted[0].add(name, instance, sample);
+			}
+		};
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Persisted", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst");
+		MeasureCounter measure = builder.createMeasureCounter("measure", CounterOption.MIN_MAX);
+		HistogramCounter histogram = builder.createHistogramCounter("histogram");
+		CounterData cd = builder.create();
+
+		JsonArray timestamps = new JsonArray(); // of persisted, newest first, as sampled
+		for (int i = 0; i < 60; i++) {
+			if (i == 30) {
+				// restart after a crash that tore the last record
+				File[] segments = dir.listFiles();
+				Arrays.sort(segments);
+				assertTrue(segments.length > 2); // rotated
+				RandomAccessFile last = new RandomAccessFile(segments[segments.length - 1], "rw");
+				last.seek(last.length());
+				last.writeInt(100); // a record cut after its first bytes
+				last.writeInt(12345);
+				last.write(new byte[] { SegmentStore.SLOT, 60, 1, 2 });
+				last.close();
+				persisted[0] = new SampleCollector(8);
+				SegmentStore store = new SegmentStore(dir, 1024, 1 << 20, TimeUnit.DAYS.toMillis(1), 0);
+				assertEquals(30, store.getNextSlot());
+				persisted[0].setStore(store);
+			}
+			inc.add(i);
+			inst.add(i % 3 - 1);
+			measure.recordValue(i * 1000);
+			histogram.recordValue(i + 10);
+			reference.startSlot();
+			persisted[0].startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, both);
+			reference.endSlot();
+			persisted[0].endSlot();
+			assertEquals(reference.getLastSlot(), persisted[0].getLastSlot());
+			JsonArray timestamp = new JsonParser().parse(persisted[0].toJson(persisted[0].getLastSlot(), 1))
+					.getAsJsonObject().getAsJsonArray("timestamps");
+			timestamp.addAll(timestamps);
+			timestamps = timestamp;
+
+			// the slots that are only in the segments read the same as in memory
+			JsonObject r = new JsonParser().parse(reference.toJson(reference.getLastSlot(), 40)).getAsJsonObject();
+			JsonObject p = new JsonParser().parse(persisted[0].toJson(persisted[0].getLastSlot(), 40)).getAsJsonObject();
+			assertEquals(r.get("slots"), p.get("slots"));
+			for (int j = 0; j < p.getAsJsonArray("timestamps").size(); j++) {
+				// each collector takes its own timestamps
+				assertEquals(timestamps.get(j), p.getAsJsonArray("timestamps").get(j));
+			}
+			assertEquals(r.get("counters"), p.get("counters"));
+		}
+
+		// oldest segments are deleted beyond the size of the store
+		persisted[0] = new SampleCollector(8);
+		SegmentStore store = new SegmentStore(dir, 1024, 4096, TimeUnit.DAYS.toMillis(1), 0);
+		persisted[0].setStore(store);
+		for (int i = 0; i < 20; i++) {
+			persisted[0].startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, persisted[0]);
+			persisted[0].endSlot();
+		}
+		long bytes = 0;
+		for (File f: dir.listFiles()) {
+			bytes += f.length();
+		}
+		assertTrue(bytes < 4096 + 1024 + 512);
+		JsonObject p = new JsonParser().parse(persisted[0].toJson(persisted[0].getLastSlot(), 80)).getAsJsonObject();
+		assertEquals(persisted[0].getLastSlot() - store.getFirstSlot() + 1, p.getAsJsonArray("slots").size());
+		assertTrue(store.getFirstSlot() > 0);
+		persisted[0].close();
+
+		// segments too old are deleted when the store opens, even without rotation
+		for (File f: dir.listFiles()) {
+			f.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+		}
+		store = new SegmentStore(dir, 1024, 4096, TimeUnit.DAYS.toMillis(1), 0);
+		assertEquals(1, dir.listFiles().length); // the new segment
+		store.close();
+
+		// slots far into a segment are read from its index
+		for (File f: dir.listFiles()) {
+			f.delete();
+		}
+		persisted[0] = new SampleCollector(8);
+		persisted[0].setStore(new SegmentStore(dir, 1 << 20, 1 << 20, TimeUnit.DAYS.toMillis(1), 0));
+		for (int i = 0; i < 4 * SegmentStore.INDEX_SLOTS; i++) {
+			inc.add(i);
+			measure.recordValue(i);
+			reference.startSlot();
+			persisted[0].startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, both);
+			reference.endSlot();
+			persisted[0].endSlot();
+		}
+		assertEquals(1, dir.listFiles().length);
+		for (int back: new int[] { 20, 70, 90 }) {
+			JsonObject r = new JsonParser().parse(reference.toJson(reference.getLastSlot() - back, 10))
+					.getAsJsonObject();
+			p = new JsonParser().parse(persisted[0].toJson(persisted[0].getLastSlot() - back, 10)).getAsJsonObject();
+			assertEquals(10, p.getAsJsonArray("slots").size());
+			assertEquals(r.get("counters"), p.get("counters"));
+		}
+		persisted[0].close();
+
+		// a slot that fails to be written does not leave its rows defined
+		for (File f: dir.listFiles()) {
+			f.delete();
+		}
+		final boolean[] fail = { true };
+		store = new SegmentStore(dir, 1 << 20, 1 << 20, TimeUnit.DAYS.toMillis(1), 0) {
+			@Override
+			void write(ByteBuffer b) throws IOException {
+				if (fail[0] && b.get(b.position() + SegmentStore.RECORD_HEADER_SIZE - 1) == SegmentStore.SLOT) {
+					fail[0] = false; // after the definitions
+					throw new IOException("Injected");
+				}
+				super.write(b);
+			}
+		};
+		persisted[0] = new SampleCollector(8);
+		persisted[0].setStore(store);
+		for (int i = 0; i < 2; i++) {
+			persisted[0].startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, persisted[0]);
+			try {
+				persisted[0].endSlot();
+				assertEquals(1, i);
+			} catch (RuntimeException e) {
+				assertEquals(0, i);
+			}
+		}
+		ColumnarHistory h = store.read(persisted[0].getLastSlot(), 2);
+		ColumnarHistory.Row row = h.getRows("Persisted").get(0);
+		boolean[] present = new boolean[2];
+		assertEquals(1, h.readSlots(row, persisted[0].getLastSlot(), 2, present));
+		assertTrue(present[0]);
+		persisted[0].close();
+
+		for (File f: dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	public void testExportToMappedFile() throws IOException {
+		File f = File.createTempFile("jperfcounters", ".dat");
+		f.deleteOnExit();
+		collector.setPerfDataWriter(new PerfDataWriter(f, 4096));
+
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Export", "main");
+		IncrementalCounter inc = builder.createIncrementalCounter("inc");
+		InstantaneousCounter inst = builder.createInstantaneousCounter("inst");
+		MeasureCounter measure = builder.createMeasureCounter("measure");
+		CounterData cd = builder.create();
+
+		inc.add(3);
+		inst.set(42);
+		measure.recordValue(5);
+		sample(cd);
+		inc.inc();
+		sample(cd);
+
+		PerfDataReader reader = new PerfDataReader(f);
+		try {
+			List<PerfDataReader.Entry> entries = reader.getEntries();
+			assertEquals(1, entries.size());
+			PerfDataReader.Entry e = entries.get(0);
+			assertEquals("Export", e.getName());
+			assertEquals("main", e.getInstance());
+			assertEquals("measure", e.getMeasureCounterNames()[0]);
+			PerfDataReader.Values v = e.read();
+			assertEquals(collector.getLastSlot(), v.slot);
+			assertEquals(4, v.incrementalCountersCumulative[0]);
+			assertEquals(42, v.instantaneousCountersValue[0]);
+			assertEquals(1, v.measureCountersCountsCumulative[0]);
+			assertEquals(5, v.measureCountersValuesCumulative[0]);
+			assertFalse(reader.isOverflow());
+
+			// the same name and instance again, with more counters: a new entry
+			counterMgr.unregisterCounterData(cd);
+			builder = counterMgr.createCounterBuilder("Export", "main");
+			builder.createIncrementalCounter("inc");
+			IncrementalCounter other = builder.createIncrementalCounter("other");
+			CounterData cd2 = builder.create();
+			other.add(7);
+			sample(cd2);
+			entries = reader.getEntries();
+			assertEquals(2, entries.size());
+			assertEquals(7, entries.get(1).read().incrementalCountersCumulative[1]);
+			assertEquals(4, e.read().incrementalCountersCumulative[0]); // untouched
+
+			// the exporting process died while writing the values
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			mapped.order(ByteOrder.nativeOrder());
+			int sequence = PerfDataWriter.HEADER_SIZE + PerfDataWriter.ENTRY_SEQUENCE_OFFSET;
+			mapped.putLong(sequence, mapped.getLong(sequence) + 1);
+			raf.close();
+			assertNull(e.read(10, TimeUnit.MILLISECONDS));
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Update throughput when each thread has its own counter, with counters
+ * packed together (default) versus on their own cache lines (padded).
+ *
+ * Usage: CounterLayoutBenchmark [threads]
+ */
+public class CounterLayoutBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = Bench.threads(args, 0);
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		System.out.println("threads: " + threads + ", cpus: " + Runtime.getRuntime().availableProcessors());
+
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Packed", "main");
+		Bench.report("packed", run(threads, builder));
+
+		builder = counterMgr.createCounterBuilder("Padded", "main").padded();
+		Bench.report("padded", run(threads, builder));
+	}
+
+	private static double run(int threads, CounterDataBuilder builder) throws InterruptedException {
+		final IncrementalCounter[] counters = new IncrementalCounter[threads];
+		for (int i = 0; i < threads; i++) {
+			counters[i] = builder.createIncrementalCounter("c" + i);
+		}
+		builder.create();
+		return Bench.measure(threads, 4000, new Bench.Task() {
+			public long run(int t) {
+				IncrementalCounter c = counters[t];
+				for (int i = 0; i < 1000; i++) {
+					c.inc();
+				}
+				return 1000;
+			}
+		});
+	}
+}
@@ -0,0 +1,65 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Cost of one update of a shared counter, for the different update paths.
+ *
+ * Usage: CounterUpdateBenchmark [threads]
+ */
+public class CounterUpdateBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		System.out.println("threads: " + threads + ", cpus: " + Runtime.getRuntime().availableProcessors());
+
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Update", "main");
+		IncrementalCounter phaser = builder.createIncrementalCounter("phaser");
+		IncrementalCounter relaxed = builder.createIncrementalCounter("relaxed", CounterOption.RELAXED);
+		IncrementalCounter striped = builder.createIncrementalCounter("striped", CounterOption.STRIPED);
+		IncrementalCounter relaxedStriped = builder.createIncrementalCounter("relaxedStriped",
+				CounterOption.RELAXED, CounterOption.STRIPED);
+		HistogramCounter histogram = builder.createHistogramCounter("histogram");
+		HistogramCounter stripedHistogram = builder.createHistogramCounter("stripedHistogram", CounterOption.STRIPED);
+		builder.create();
+
+		builder = counterMgr.createCounterBuilder("SingleWriter", "main").singleWriter();
+		IncrementalCounter singleWriter = builder.createIncrementalCounter("singleWriter");
+		HistogramCounter singleWriterHistogram = builder.createHistogramCounter("singleWriterHistogram");
+		builder.create();
+
+		Bench.report("inc", run(threads, phaser));
+		Bench.report("inc, RELAXED", run(threads, relaxed));
+		Bench.report("inc, STRIPED", run(threads, striped));
+		Bench.report("inc, RELAXED + STRIPED", run(threads, relaxedStriped));
+		if (threads == 1) {
+			Bench.report("inc, singleWriter()", run(threads, singleWriter));
+		}
+		Bench.report("recordValue", run(threads, histogram));
+		Bench.report("recordValue, STRIPED", run(threads, stripedHistogram));
+		if (threads == 1) {
+			Bench.report("recordValue, singleWriter()", run(threads, singleWriterHistogram));
+		}
+	}
+
+	static double run(int threads, final IncrementalCounter c) throws InterruptedException {
+		return Bench.measure(threads, 4000, new Bench.Task() {
+			public long run(int t) {
+				for (int i = 0; i < 1000; i++) {
+					c.inc();
+				}
+				return 1000;
+			}
+		});
+	}
+
+	static double run(int threads, final HistogramCounter c) throws InterruptedException {
+		return Bench.measure(threads, 4000, new Bench.Task() {
+			public long run(int t) {
+				for (int i = 0; i < 1000; i++) {
+					c.recordValue(i);
+				}
+				return 1000;
+			}
+		});
+	}
+}
@@ -0,0 +1,91 @@
+package net.florianx.jperfcounters.core;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Cost of HiResCounter.setState() with sampled (default) and EXACT
+ * accounting, then accuracy of both: a thread is BUSY for short bursts,
+ * shorter than the hi-res period, and the BUSY time each counter reports
+ * is compared with the one the thread measured itself.
+ *
+ * Usage: HiResBenchmark [burst micros] [cycle micros] [seconds]
+ */
+public class HiResBenchmark {
+
+	enum State {
+		IDLE,
+		BUSY
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long burst = (args.length > 0 ? Long.parseLong(args[0]) : 300) * 1000;
+		long cycle = (args.length > 1 ? Long.parseLong(args[1]) : 5000) * 1000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		CounterMgr counterMgr = new CounterMgr();
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("HiRes", "main");
+		final HiResCounter<State> sampled = builder.createHiResCounter("sampled", State.values());
+		final HiResCounter<State> exact = builder.createHiResCounter("exact", State.values(), CounterOption.EXACT);
+		builder.create();
+
+		Bench.report("setState", run(sampled));
+		Bench.report("setState, EXACT", run(exact));
+
+		counterMgr.init();
+		Thread.sleep(1500); // start on a fresh slot
+		Reporter reporter = counterMgr.createReporter();
+		long firstSlot = reporter.getLast() + 1;
+		long busy = 0;
+		long end = System.nanoTime() + seconds * 1000000000L;
+		while (System.nanoTime() < end) {
+			long t = System.nanoTime();
+			sampled.setState(State.BUSY);
+			exact.setState(State.BUSY);
+			spinUntil(t + burst);
+			sampled.setState(State.IDLE);
+			exact.setState(State.IDLE);
+			busy += System.nanoTime() - t;
+			spinUntil(t + cycle);
+		}
+		Thread.sleep(1500); // let the last slot be sampled
+		long lastSlot = reporter.getLast();
+		JsonObject counters = new JsonParser().parse(reporter.getAsJson(lastSlot, (int)(lastSlot - firstSlot + 1)))
+				.getAsJsonObject().getAsJsonObject("counters").getAsJsonObject("HiRes").getAsJsonObject("main");
+		counterMgr.shutdown();
+
+		long tick = counterMgr.getSampleFreqHiResMillis() * 1000000L;
+		System.out.println(String.format("BUSY time, measured by the thread: %,8.1f ms", busy / 1e6));
+		System.out.println(String.format("BUSY time, sampled every %d ms:     %,8.1f ms", counterMgr.getSampleFreqHiResMillis(),
+				busyTime(counters.getAsJsonObject("sampled"), "samples") * tick / 1e6));
+		System.out.println(String.format("BUSY time, EXACT:                  %,8.1f ms",
+				busyTime(counters.getAsJsonObject("exact"), "nanos") / 1e6));
+	}
+
+	static long busyTime(JsonObject counter, String attribute) {
+		long busy = 0;
+		for (JsonElement slot: counter.getAsJsonArray(attribute)) {
+			busy += slot.getAsJsonArray().get(State.BUSY.ordinal()).getAsLong();
+		}
+		return busy;
+	}
+
+	static void spinUntil(long deadline) {
+		while (System.nanoTime() < deadline) {
+			// busy wait, sleeping is not precise enough
+		}
+	}
+
+	static double run(final HiResCounter<State> c) throws InterruptedException {
+		return Bench.measure(1, 2000, new Bench.Task() {
+			public long run(int t) {
+				for (int i = 0; i < 1000; i++) {
+					c.setState(State.BUSY);
+					c.setState(State.IDLE);
+				}
+				return 2000;
+			}
+		});
+	}
+}
@@ -0,0 +1,49 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Duration of a hi-res tick when few of many CounterData have hi-res
+ * counters: visiting all registered CounterData, as the tick used to do,
+ * versus only those with hi-res counters.
+ *
+ * Usage: HiResSamplingBenchmark [instances] [instances per hi-res instance]
+ */
+public class HiResSamplingBenchmark {
+
+	enum State {
+		IDLE,
+		BUSY
+	}
+
+	public static void main(String[] args) {
+		int instances = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int hiResEvery = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		for (int i = 0; i < instances; i++) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Session", "s" + i);
+			builder.createIncrementalCounter("requests");
+			builder.createMeasureCounter("duration");
+			if (i % hiResEvery == 0) {
+				builder.createHiResCounter("state", State.values());
+			}
+			builder.create();
+		}
+
+		for (int i = 0; i < 3; i++) {
+			run("all CounterData", counterMgr.getSampleables());
+			run("CounterData with hi-res counters", counterMgr.getHiResSampleables());
+		}
+	}
+
+	static void run(String name, CounterData[] cds) {
+		int ticks = 1000;
+		long start = System.nanoTime();
+		for (int t = 0; t < ticks; t++) {
+			for (CounterData cd: cds) {
+				cd.sampleHiRes();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%-40s %,6d visited, %,10.1f us per tick",
+				name, cds.length, nanos / 1e3 / ticks));
+	}
+}
@@ -0,0 +1,64 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Heap used per CounterData with one histogram counter, with default and
+ * PACKED histograms: idle, then after recording a few values, then after
+ * the samples released idle packed histograms.
+ *
+ * Usage: HistogramFootprintBenchmark [instances]
+ */
+public class HistogramFootprintBenchmark {
+
+	public static void main(String[] args) {
+		int instances = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		run(instances);
+		run(instances, CounterOption.PACKED);
+	}
+
+	static void run(int instances, CounterOption... options) {
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		SampleCollector collector = new SampleCollector(1);
+		String mode = options.length == 0 ? "default" : "PACKED";
+
+		long before = usedHeap();
+		CounterData[] cds = new CounterData[instances];
+		HistogramCounter[] histograms = new HistogramCounter[instances];
+		for (int i = 0; i < instances; i++) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Tenant", "t" + i);
+			histograms[i] = builder.createHistogramCounter("latency", options);
+			cds[i] = builder.create();
+		}
+		report(mode + ", idle", usedHeap() - before, cds.length);
+
+		for (int i = 0; i < instances; i++) {
+			for (int v = 1; v <= 100; v++) {
+				histograms[i].recordValue(v * 50);
+			}
+		}
+		report(mode + ", 100 values recorded", usedHeap() - before, histograms.length);
+
+		// the first sample takes the values; each Data must then be reset with values,
+		// and once more without, before its histogram is released
+		for (int s = 0; s < 5; s++) {
+			collector.startSlot();
+			for (CounterData cd: cds) {
+				cd.sample(PerfSampleable.SampleType.Normal, collector);
+			}
+			collector.endSlot();
+		}
+		collector = null; // keep the history out of the figures
+		report(mode + ", idle again", usedHeap() - before, cds.length);
+	}
+
+	static void report(String what, long bytes, int instances) {
+		System.out.println(String.format("%-40s %,10d bytes per instance", what, bytes / instances));
+	}
+
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
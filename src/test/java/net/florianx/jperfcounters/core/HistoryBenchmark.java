@@ -0,0 +1,108 @@
+package net.florianx.jperfcounters.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Heap held by the history of a SampleCollector once full, per instance
+ * and slot, time to add a slot, and time to read the last slots of all
+ * instances as a JSON String, and streamed to a Writer.
+ *
+ * Counters vary like live ones would: requests by a few per slot, errors
+ * now and then, pending up and down, durations spread at random.
+ *
+ * With a rollup of n slots, the history also keeps a rollup tier of slots
+ * of n slots, and reads go through it, one point per n slots.
+ *
+ * Usage: HistoryBenchmark [instances] [history] [slots read] [compressed] [rollup]
+ */
+public class HistoryBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int instances = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int historySize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int read = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		boolean compressed = args.length > 3 && Boolean.parseBoolean(args[3]);
+		int rollup = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+
+		CounterData[] cds = new CounterData[instances];
+		IncrementalCounter[] incs = new IncrementalCounter[instances];
+		IncrementalCounter[] errors = new IncrementalCounter[instances];
+		InstantaneousCounter[] pending = new InstantaneousCounter[instances];
+		MeasureCounter[] durations = new MeasureCounter[instances];
+		for (int i = 0; i < instances; i++) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Session", "s" + i);
+			incs[i] = builder.createIncrementalCounter("requests");
+			errors[i] = builder.createIncrementalCounter("errors");
+			pending[i] = builder.createInstantaneousCounter("pending");
+			durations[i] = builder.createMeasureCounter("duration");
+			cds[i] = builder.create();
+		}
+		Random random = new Random(1);
+
+		long before = HistogramFootprintBenchmark.usedHeap();
+		SampleCollector collector = new SampleCollector(historySize, compressed);
+		if (rollup > 1) {
+			collector.addRollup(rollup, historySize / rollup);
+		}
+		long slotNanos = 0;
+		for (int s = 0; s < historySize * 2; s++) {
+			for (int i = 0; i < instances; i++) {
+				incs[i].add(random.nextInt(4));
+				if (random.nextInt(50) == 0) {
+					errors[i].inc();
+				}
+				pending[i].add(random.nextInt(3) - 1);
+				durations[i].recordValue(random.nextInt(200));
+			}
+			long start = System.nanoTime();
+			collector.startSlot();
+			for (CounterData cd: cds) {
+				cd.sample(PerfSampleable.SampleType.Normal, collector);
+			}
+			collector.endSlot();
+			if (s >= historySize) { // history full
+				slotNanos += System.nanoTime() - start;
+			}
+		}
+		long bytes = HistogramFootprintBenchmark.usedHeap() - before;
+		System.out.println(String.format("%,d instances, %,d slots" + (compressed ? ", compressed" : "") + ": %,d MB, %,.1f bytes per instance and slot",
+				instances, historySize, bytes >> 20, (double)bytes / instances / historySize));
+		System.out.println(String.format("sample and store a slot: %,.2f ms", slotNanos / 1e6 / historySize));
+
+		int rounds = 20;
+		long start = 0;
+		for (int r = 0; r < rounds * 2; r++) {
+			if (r == rounds) { // warmed up
+				start = System.nanoTime();
+			}
+			collector.toJson(collector.getLastSlot(), read, read / rollup);
+		}
+		System.out.println(String.format("toJson of the last %d slots, %d points: %,.1f ms", read, read / rollup,
+				(System.nanoTime() - start) / 1e6 / rounds));
+		Writer discard = new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+			}
+			@Override
+			public void flush() {
+			}
+			@Override
+			public void close() {
+			}
+		};
+		for (int r = 0; r < rounds * 2; r++) {
+			if (r == rounds) {
+				start = System.nanoTime();
+			}
+			collector.writeJson(collector.getLastSlot(), read, read / rollup, discard);
+		}
+		System.out.println(String.format("writeJson of the last %d slots, %d points: %,.1f ms", read, read / rollup,
+				(System.nanoTime() - start) / 1e6 / rounds));
+		if (collector.getLastSlot() < 0) { // keep the collector reachable until here
+			System.out.println();
+		}
+	}
+}
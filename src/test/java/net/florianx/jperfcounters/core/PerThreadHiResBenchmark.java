@@ -0,0 +1,102 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Cost of setting states of PER_THREAD hi-res counters, sampled and EXACT,
+ * from many threads at once, compared with a shared state; then the cost
+ * of a hi-res tick with many registered threads.
+ *
+ * Usage: PerThreadHiResBenchmark [threads] [registered]
+ */
+public class PerThreadHiResBenchmark {
+
+	enum State {
+		IDLE,
+		BUSY
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = Bench.threads(args, 0);
+		int registered = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("PerThread", "main");
+		final HiResCounter<State> shared = builder.createHiResCounter("shared", State.values());
+		final HiResCounter<State> sharedExact = builder.createHiResCounter("sharedExact", State.values(),
+				CounterOption.EXACT);
+		HiResCounter<State> perThread = builder.createHiResCounter("perThread", State.values(),
+				CounterOption.PER_THREAD);
+		HiResCounter<State> perThreadExact = builder.createHiResCounter("perThreadExact", State.values(),
+				CounterOption.PER_THREAD, CounterOption.EXACT);
+		CounterData cd = builder.create();
+
+		Bench.report("setState, shared, " + threads + " threads", Bench.measure(threads, 2000, new Bench.Task() {
+			public long run(int t) {
+				for (int i = 0; i < 1000; i++) {
+					shared.setState(State.BUSY);
+					shared.setState(State.IDLE);
+				}
+				return 2000;
+			}
+		}));
+		Bench.report("setState, shared EXACT, " + threads + " threads", Bench.measure(threads, 2000, new Bench.Task() {
+			public long run(int t) {
+				for (int i = 0; i < 1000; i++) {
+					sharedExact.setState(State.BUSY);
+					sharedExact.setState(State.IDLE);
+				}
+				return 2000;
+			}
+		}));
+		Bench.report("setState, PER_THREAD, " + threads + " threads", run(perThread, threads));
+		Bench.report("setState, PER_THREAD EXACT, " + threads + " threads", run(perThreadExact, threads));
+
+		for (int i = 0; i < registered; i++) {
+			perThread.register(State.IDLE);
+			perThreadExact.register(State.IDLE);
+		}
+		int ticks = 10000;
+		for (int i = 0; i < ticks; i++) { // warm up
+			cd.sampleHiRes();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ticks; i++) {
+			cd.sampleHiRes();
+		}
+		System.out.println(String.format("hi-res tick, %,d threads registered: %,.1f us",
+				registered, (System.nanoTime() - start) / 1e3 / ticks));
+		SampleCollector collector = new SampleCollector(16);
+		start = 0;
+		for (int i = 0; i < 200; i++) {
+			if (i == 100) { // warmed up
+				start = System.nanoTime();
+			}
+			collector.startSlot();
+			cd.sample(PerfSampleable.SampleType.Normal, collector);
+			collector.endSlot();
+		}
+		System.out.println(String.format("sample, %,d threads registered for EXACT: %,.1f us",
+				registered, (System.nanoTime() - start) / 1e3 / 100));
+	}
+
+	@SuppressWarnings("unchecked")
+	static double run(HiResCounter<State> c, int threads) throws InterruptedException {
+		final HiResThreadState<State>[] states = new HiResThreadState[threads];
+		for (int i = 0; i < threads; i++) {
+			states[i] = c.register(State.IDLE);
+		}
+		double r = Bench.measure(threads, 2000, new Bench.Task() {
+			public long run(int t) {
+				HiResThreadState<State> s = states[t];
+				for (int i = 0; i < 1000; i++) {
+					s.setState(State.BUSY);
+					s.setState(State.IDLE);
+				}
+				return 2000;
+			}
+		});
+		for (HiResThreadState<State> s: states) {
+			s.close();
+		}
+		return r;
+	}
+}
@@ -0,0 +1,102 @@
+package net.florianx.jperfcounters.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to sample and store a slot with and without persisting it to
+ * segment files, bytes per instance and slot on disk, and time to read
+ * slots that are only on disk, with and without building the JSON. Counters vary like in
+ * HistoryBenchmark.
+ *
+ * Usage: PersistedHistoryBenchmark [instances] [slots] [slots read]
+ */
+public class PersistedHistoryBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int instances = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int slots = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int read = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+
+		CounterData[] cds = new CounterData[instances];
+		IncrementalCounter[] incs = new IncrementalCounter[instances];
+		MeasureCounter[] durations = new MeasureCounter[instances];
+		for (int i = 0; i < instances; i++) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Session", "s" + i);
+			incs[i] = builder.createIncrementalCounter("requests");
+			builder.createIncrementalCounter("errors");
+			builder.createInstantaneousCounter("pending");
+			durations[i] = builder.createMeasureCounter("duration");
+			cds[i] = builder.create();
+		}
+
+		File dir = File.createTempFile("jperfcounters", ".history");
+		dir.delete();
+		SampleCollector memory = new SampleCollector(100);
+		SampleCollector persisted = new SampleCollector(100);
+		SegmentStore store = new SegmentStore(dir, 16 << 20, Long.MAX_VALUE, TimeUnit.DAYS.toMillis(1), 1000);
+		persisted.setStore(store);
+		Random random = new Random(1);
+		long[] nanos = new long[2];
+		for (int s = 0; s < slots; s++) {
+			for (int i = 0; i < instances; i++) {
+				incs[i].add(random.nextInt(4));
+				durations[i].recordValue(random.nextInt(200));
+			}
+			SampleCollector collector = s % 2 == 0 ? memory : persisted;
+			long start = System.nanoTime();
+			collector.startSlot();
+			for (CounterData cd: cds) {
+				cd.sample(PerfSampleable.SampleType.Normal, collector);
+			}
+			collector.endSlot();
+			nanos[s % 2] += System.nanoTime() - start;
+		}
+		long bytes = 0;
+		for (File f: dir.listFiles()) {
+			bytes += f.length();
+		}
+		System.out.println(String.format("sample and store a slot: %,.2f ms in memory, %,.2f ms persisted",
+				nanos[0] / 1e6 / (slots / 2), nanos[1] / 1e6 / (slots / 2)));
+		System.out.println(String.format("%,d instances, %,d slots on disk: %,d MB, %,.1f bytes per instance and slot",
+				instances, slots / 2, bytes >> 20, (double)bytes / instances / (slots / 2)));
+
+		int rounds = 10;
+		long start = 0;
+		for (int r = 0; r < rounds * 2; r++) {
+			if (r == rounds) { // warmed up
+				start = System.nanoTime();
+			}
+			store.read(persisted.getLastSlot() - 100, read);
+		}
+		System.out.println(String.format("read of %d slots from disk, without JSON: %,.1f ms", read,
+				(System.nanoTime() - start) / 1e6 / rounds));
+		start = 0;
+		for (int r = 0; r < rounds * 2; r++) {
+			if (r == rounds) {
+				start = System.nanoTime();
+			}
+			persisted.toJson(persisted.getLastSlot() - 100, read);
+		}
+		System.out.println(String.format("toJson of %d slots from disk: %,.1f ms", read,
+				(System.nanoTime() - start) / 1e6 / rounds));
+		start = 0;
+		for (int r = 0; r < rounds * 2; r++) {
+			if (r == rounds) {
+				start = System.nanoTime();
+			}
+			memory.toJson(memory.getLastSlot(), read);
+		}
+		System.out.println(String.format("toJson of %d slots in memory: %,.1f ms", read,
+				(System.nanoTime() - start) / 1e6 / rounds));
+
+		persisted.close();
+		for (File f: dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,77 @@
+package net.florianx.jperfcounters.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registration churn while sampling: threads keep creating and
+ * unregistering short-lived CounterData, as for per-request counters,
+ * next to a steady population, while another thread samples as fast as
+ * it can. Reports registrations per second, and the samples taken with
+ * their mean and longest durations.
+ *
+ * Usage: RegistryChurnBenchmark [threads] [steady instances] [seconds]
+ */
+public class RegistryChurnBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = Bench.threads(args, 0);
+		int steady = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		final CounterMgr counterMgr = new CounterMgr(); // not started, sampled below
+		for (int i = 0; i < steady; i++) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Session", "s" + i);
+			builder.createIncrementalCounter("requests");
+			builder.createMeasureCounter("duration");
+			builder.create();
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong registrations = new AtomicLong();
+		Thread[] churn = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final String prefix = "t" + t + "-";
+			churn[t] = new Thread() {
+				public void run() {
+					long n = 0;
+					while (!stop.get()) {
+						CounterDataBuilder builder = counterMgr.createCounterBuilder("Request", prefix + n++);
+						IncrementalCounter inc = builder.createIncrementalCounter("calls");
+						CounterData cd = builder.create();
+						inc.inc();
+						counterMgr.unregisterCounterData(cd);
+					}
+					registrations.addAndGet(n);
+				}
+			};
+			churn[t].start();
+		}
+
+		SampleCollector collector = new SampleCollector(16);
+		long samples = 0;
+		long total = 0;
+		long longest = 0;
+		long end = System.nanoTime() + seconds * 1000000000L;
+		while (System.nanoTime() < end) {
+			long start = System.nanoTime();
+			collector.startSlot();
+			for (CounterData cd: counterMgr.getSampleables()) {
+				cd.sample(PerfSampleable.SampleType.Normal, collector);
+			}
+			collector.endSlot();
+			long d = System.nanoTime() - start;
+			total += d;
+			longest = Math.max(longest, d);
+			++samples;
+		}
+		stop.set(true);
+		for (Thread t: churn) {
+			t.join();
+		}
+		System.out.println(String.format("%d churn threads, %,d steady instances: %,.0f registrations/s",
+				threads, steady, registrations.get() / (double)seconds));
+		System.out.println(String.format("%,d samples, %,.2f ms mean, %,.2f ms longest",
+				samples, total / 1e6 / samples, longest / 1e6));
+	}
+}
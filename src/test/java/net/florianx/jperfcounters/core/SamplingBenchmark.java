@@ -0,0 +1,59 @@
+package net.florianx.jperfcounters.core;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Duration of a full (Normal) sample of many CounterData, and memory
+ * allocated by the sampling thread per sample, once the history is full.
+ * With more than one thread, the CounterData are sampled in parallel
+ * shards, see ShardedSampling; the allocation then only covers the
+ * sampler thread, not the pool.
+ *
+ * Usage: SamplingBenchmark [instances] [history] [threads]
+ */
+public class SamplingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int instances = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int historySize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		SampleCollector collector = new SampleCollector(historySize);
+		ShardedSampling sharded = new ShardedSampling(collector);
+
+		CounterData[] cds = new CounterData[instances];
+		IncrementalCounter[] incs = new IncrementalCounter[instances];
+		for (int i = 0; i < instances; i++) {
+			CounterDataBuilder builder = counterMgr.createCounterBuilder("Session", "s" + i);
+			incs[i] = builder.createIncrementalCounter("requests");
+			builder.createIncrementalCounter("errors");
+			builder.createInstantaneousCounter("pending");
+			builder.createMeasureCounter("duration");
+			cds[i] = builder.create();
+		}
+
+		com.sun.management.ThreadMXBean threadBean
+				= (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		int samples = historySize * 3;
+		long measuredNanos = 0;
+		long measuredBytes = 0;
+		for (int s = 0; s < samples; s++) {
+			for (int i = 0; i < instances; i++) {
+				incs[i].inc();
+			}
+			long bytes = threadBean.getThreadAllocatedBytes(tid);
+			long start = System.nanoTime();
+			collector.startSlot();
+			sharded.sample(cds, PerfSampleable.SampleType.Normal, threads);
+			collector.endSlot();
+			if (s >= samples - historySize) { // history full, steady state
+				measuredNanos += System.nanoTime() - start;
+				measuredBytes += threadBean.getThreadAllocatedBytes(tid) - bytes;
+			}
+		}
+		sharded.shutdown();
+		System.out.println(String.format("%,d instances, %d threads: %,.2f ms per sample, %,d bytes allocated per sample",
+				instances, threads, measuredNanos / 1e6 / historySize, measuredBytes / historySize));
+	}
+}
@@ -0,0 +1,58 @@
+package net.florianx.jperfcounters.core;
+
+/**
+ * Cost of creating the instances of a collection, and heap used per
+ * instance, with a builder per instance and with a CounterTemplate.
+ *
+ * Usage: TemplateBenchmark [instances]
+ */
+public class TemplateBenchmark {
+
+	enum State {
+		IDLE,
+		READING,
+		WRITING
+	}
+
+	public static void main(String[] args) {
+		int instances = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		for (int round = 0; round < 2; round++) { // the first round warms up
+			run("builder per instance", instances, false);
+			run("template", instances, true);
+		}
+	}
+
+	static CounterMgr live; // keeps the instances reachable while measuring
+
+	static void run(String mode, int instances, boolean template) {
+		live = null;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		live = counterMgr;
+		long before = HistogramFootprintBenchmark.usedHeap();
+		long start = System.nanoTime();
+		CounterTemplate t = template ? define(counterMgr.createTemplateBuilder("Session")).createTemplate() : null;
+		for (int i = 0; i < instances; i++) {
+			if (template) {
+				t.createInstance("s" + i);
+			} else {
+				define(counterMgr.createCounterBuilder("Session", "s" + i)).create();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = HistogramFootprintBenchmark.usedHeap() - before;
+		System.out.println(String.format("%-25s %,8.2f us per instance, %,8d bytes per instance",
+				mode, nanos / 1e3 / instances, bytes / instances));
+	}
+
+	static CounterDataBuilder define(CounterDataBuilder builder) {
+		builder.createIncrementalCounter("requests");
+		builder.createIncrementalCounter("errors");
+		builder.createIncrementalCounter("bytesIn");
+		builder.createIncrementalCounter("bytesOut");
+		builder.createInstantaneousCounter("pending");
+		builder.createMeasureCounter("duration");
+		builder.createMeasureCounter("size");
+		builder.createHiResCounter("state", State.values());
+		return builder;
+	}
+}
@@ -0,0 +1,75 @@
+package net.florianx.jperfcounters.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a timed region with the TimedCounter methods, and memory allocated
+ * per timed region after warming up (a Stopwatch is 32 bytes).
+ *
+ * Usage: TimerBenchmark [regions]
+ */
+public class TimerBenchmark {
+
+	interface Region {
+		void run(int count);
+	}
+
+	public static void main(String[] args) {
+		int regions = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		CounterMgr counterMgr = new CounterMgr(); // not started
+		CounterDataBuilder builder = counterMgr.createCounterBuilder("Timer", "main").timeUnit(TimeUnit.MICROSECONDS);
+		final MeasureCounter measure = builder.createMeasureCounter("measure");
+		final HistogramCounter histogram = builder.createHistogramCounter("histogram", 1, 60000000, 2);
+		builder.create();
+
+		run("MeasureCounter, start/stop", regions, new Region() {
+			public void run(int count) {
+				for (int i = 0; i < count; i++) {
+					measure.stop(measure.start());
+				}
+			}
+		});
+		run("MeasureCounter, Stopwatch", regions, new Region() {
+			public void run(int count) {
+				for (int i = 0; i < count; i++) {
+					try (Stopwatch s = measure.time()) {
+						// timed region
+					}
+				}
+			}
+		});
+		run("HistogramCounter, start/stop", regions, new Region() {
+			public void run(int count) {
+				for (int i = 0; i < count; i++) {
+					histogram.stop(histogram.start());
+				}
+			}
+		});
+		run("HistogramCounter, Stopwatch", regions, new Region() {
+			public void run(int count) {
+				for (int i = 0; i < count; i++) {
+					try (Stopwatch s = histogram.time()) {
+						// timed region
+					}
+				}
+			}
+		});
+	}
+
+	static void run(String name, int regions, Region region) {
+		com.sun.management.ThreadMXBean threadBean
+				= (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		for (int i = 0; i < 10; i++) {
+			region.run(regions / 10); // warm up, let the JIT compile the loop
+		}
+		long bytes = threadBean.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		region.run(regions);
+		long nanos = System.nanoTime() - start;
+		bytes = threadBean.getThreadAllocatedBytes(tid) - bytes;
+		System.out.println(String.format("%-40s %,8.1f ns per region, %.3f bytes per region",
+				name, (double)nanos / regions, (double)bytes / regions));
+	}
+}